@@ -30,8 +30,22 @@ import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.naming.NamingException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,11 +69,38 @@ import org.slf4j.LoggerFactory;
  * 
  * <tr>
  * <td>ldap/baseURL</td>
- * <td>URL of the LDAP server</td>
+ * <td>URL of the LDAP server, or several space separated URLs</td>
  * <td><b>Yes</b></td>
  * <td>ldap://ldap.uq.edu.au:389</td>
  * </tr>
  * <tr>
+ * <td>ldap/servers</td>
+ * <td>List of LDAP server URLs to use instead of baseURL. Each operation goes to the
+ * reachable server with the lowest recent latency and fails over to the next one.</td>
+ * <td><b>No</b></td>
+ * <td>the URLs in baseURL</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/srvDomain</td>
+ * <td>DNS domain whose _ldap._tcp SRV records list further servers, looked up again
+ * on every health check</td>
+ * <td><b>No</b></td>
+ * <td>none</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/healthCheckInterval</td>
+ * <td>Milliseconds between background probes of every server, 0 for none. Without
+ * probes an unavailable server is retried 30 seconds after it failed.</td>
+ * <td><b>No</b></td>
+ * <td>30000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/contextFactory</td>
+ * <td>Class name of the JNDI context factory that connects to the servers</td>
+ * <td><b>No</b></td>
+ * <td>com.sun.jndi.ldap.LdapCtxFactory</td>
+ * </tr>
+ * <tr>
  * <td>ldap/baseDN</td>
  * <td>The base Distinguished Name to search under</td>
  * <td><b>Yes</b></td>
@@ -89,6 +130,314 @@ import org.slf4j.LoggerFactory;
  * <td><b>No</b></td>
  * <td>objectClass</td>
  * </tr>
+ * <tr>
+ * <td>ldap/timeouts/connect</td>
+ * <td>Milliseconds to wait for a connection to an LDAP server, 0 for no limit</td>
+ * <td><b>No</b></td>
+ * <td>5000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/timeouts/read</td>
+ * <td>Milliseconds to wait for an LDAP server to answer a request, 0 for no limit</td>
+ * <td><b>No</b></td>
+ * <td>30000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/circuitBreaker/failureThreshold</td>
+ * <td>Consecutive connection failures or timeouts after which directory calls fail
+ * fast, 0 to never stop calling the directory</td>
+ * <td><b>No</b></td>
+ * <td>5</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/circuitBreaker/openDuration</td>
+ * <td>Milliseconds directory calls fail fast before a single call is let through to
+ * check whether the directory has recovered</td>
+ * <td><b>No</b></td>
+ * <td>30000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/bulkhead/interactive/permits</td>
+ * <td>Number of logins (binds and DN searches) run against the directory at once</td>
+ * <td><b>No</b></td>
+ * <td>20</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/bulkhead/lookup/permits</td>
+ * <td>Number of attribute and role lookups run against the directory at once</td>
+ * <td><b>No</b></td>
+ * <td>6</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/bulkhead/bulk/permits</td>
+ * <td>Number of free-form queries run against the directory at once</td>
+ * <td><b>No</b></td>
+ * <td>2</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/bulkhead/interactive|lookup|bulk/queueTimeout</td>
+ * <td>Milliseconds an operation of the class waits for its turn before it is rejected</td>
+ * <td><b>No</b></td>
+ * <td>5000, 2000, 1000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/pool/minSize</td>
+ * <td>Minimum number of system principal connections kept open</td>
+ * <td><b>No</b></td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/pool/maxSize</td>
+ * <td>Maximum number of system principal connections in use at once</td>
+ * <td><b>No</b></td>
+ * <td>10</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/pool/maxIdleTime</td>
+ * <td>Milliseconds an idle pooled connection is kept before it is closed</td>
+ * <td><b>No</b></td>
+ * <td>300000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/pool/borrowTimeout</td>
+ * <td>Milliseconds to wait for a free pooled connection</td>
+ * <td><b>No</b></td>
+ * <td>5000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/pool/validateOnBorrow</td>
+ * <td>Check idle pooled connections are alive before using them</td>
+ * <td><b>No</b></td>
+ * <td>true</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/pool/validationInterval</td>
+ * <td>Milliseconds a recently used connection is trusted without validation</td>
+ * <td><b>No</b></td>
+ * <td>5000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/cache/maxEntries</td>
+ * <td>Maximum number of users cached, least recently used are evicted first</td>
+ * <td><b>No</b></td>
+ * <td>10000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/cache/expireAfterWrite</td>
+ * <td>Milliseconds after which a cached user is reloaded, 0 for never</td>
+ * <td><b>No</b></td>
+ * <td>3600000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/cache/expireAfterAccess</td>
+ * <td>Milliseconds without use after which a cached user is dropped, 0 for never</td>
+ * <td><b>No</b></td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/cache/caseSensitive</td>
+ * <td>Whether cached usernames are case sensitive</td>
+ * <td><b>No</b></td>
+ * <td>false</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/cache/refreshAhead</td>
+ * <td>Milliseconds before expiry from which reading a cached user reloads it in the
+ * background, 0 for never. At most half of expireAfterWrite.</td>
+ * <td><b>No</b></td>
+ * <td>300000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/cache/maxStaleness</td>
+ * <td>Milliseconds past expiry a cached user is still served while it is reloaded</td>
+ * <td><b>No</b></td>
+ * <td>300000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/cache/refreshConcurrency</td>
+ * <td>Number of cached users reloaded in the background at once</td>
+ * <td><b>No</b></td>
+ * <td>2</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/dnCache/maxEntries</td>
+ * <td>Maximum number of resolved user DNs remembered for binding</td>
+ * <td><b>No</b></td>
+ * <td>10000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/dnCache/ttl</td>
+ * <td>Milliseconds after which a user's DN is resolved again, 0 for never</td>
+ * <td><b>No</b></td>
+ * <td>3600000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/roleCache/maxEntries</td>
+ * <td>Maximum number of users whose roles are remembered</td>
+ * <td><b>No</b></td>
+ * <td>10000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/roleCache/ttl</td>
+ * <td>Milliseconds after which a user's roles are read again, 0 for never</td>
+ * <td><b>No</b></td>
+ * <td>300000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/groups/enabled</td>
+ * <td>Map roles from the groups users belong to, including through nested groups, as well
+ * as from their role attribute. Groups can be named by DN or by cn in the role map.</td>
+ * <td><b>No</b></td>
+ * <td>false</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/groups/baseDN</td>
+ * <td>Where to search for groups</td>
+ * <td><b>No</b></td>
+ * <td>ldap/baseDN</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/groups/filter</td>
+ * <td>Filter matching group entries</td>
+ * <td><b>No</b></td>
+ * <td>(|(objectClass=group)(objectClass=groupOfNames)(objectClass=groupOfUniqueNames))</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/groups/memberAttribute</td>
+ * <td>Attribute of a group listing the DNs of its members</td>
+ * <td><b>No</b></td>
+ * <td>member</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/groups/memberOfAttribute</td>
+ * <td>Attribute of a user listing the DNs of their groups, empty if the directory has none</td>
+ * <td><b>No</b></td>
+ * <td>memberOf</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/groups/refreshInterval</td>
+ * <td>Milliseconds between rebuilds of the in-memory index of nested group membership,
+ * 0 to search for each user's groups instead</td>
+ * <td><b>No</b></td>
+ * <td>600000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/userIndex/enabled</td>
+ * <td>Keep a snapshot of every user's DN, cn and custom attributes in memory, so that
+ * user lookups and logins of users in it need no search</td>
+ * <td><b>No</b></td>
+ * <td>false</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/userIndex/refreshInterval</td>
+ * <td>Milliseconds between rebuilds of the user snapshot</td>
+ * <td><b>No</b></td>
+ * <td>3600000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/userIndex/snapshotFile</td>
+ * <td>File the user snapshot is saved to after each rebuild and memory-mapped from at
+ * startup, so a restarted node answers lookups from it straight away</td>
+ * <td><b>No</b></td>
+ * <td>none</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/changeTracking/enabled</td>
+ * <td>Watch the directory for changed users and groups and drop them from the caches
+ * straight away, so that long cache lifetimes can be used safely</td>
+ * <td><b>No</b></td>
+ * <td>false</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/changeTracking/mode</td>
+ * <td>"persistent" uses a Persistent Search, "poll" searches for entries by
+ * modifyTimestamp, "auto" uses a Persistent Search if the server supports it</td>
+ * <td><b>No</b></td>
+ * <td>auto</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/changeTracking/pollInterval</td>
+ * <td>Milliseconds between searches for changed entries when polling</td>
+ * <td><b>No</b></td>
+ * <td>30000</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/bindStrategy</td>
+ * <td>For users without a cached DN: "template" binds idAttribute=username,baseDN first,
+ * "search" searches for the DN first, "auto" picks whichever is cheaper for the directory</td>
+ * <td><b>No</b></td>
+ * <td>auto</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/search/lookup/countLimit</td>
+ * <td>Maximum number of entries a search for a user may return, 0 for no limit.
+ * Lookups that only use the first entry always ask for one.</td>
+ * <td><b>No</b></td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/search/lookup/timeLimit</td>
+ * <td>Milliseconds the server may spend on a search for a user, 0 for no limit</td>
+ * <td><b>No</b></td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/search/query/countLimit</td>
+ * <td>Maximum number of entries a free-form query may return, 0 for no limit</td>
+ * <td><b>No</b></td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/search/query/timeLimit</td>
+ * <td>Milliseconds the server may spend on a free-form query, 0 for no limit</td>
+ * <td><b>No</b></td>
+ * <td>0</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/batchSize</td>
+ * <td>Number of users looked up by each search when getUsers resolves many users at once</td>
+ * <td><b>No</b></td>
+ * <td>50</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/search/pageSize</td>
+ * <td>Number of entries fetched per page by user searches and free-form queries, which
+ * use the Simple Paged Results control</td>
+ * <td><b>No</b></td>
+ * <td>500</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/search/users/maxResults</td>
+ * <td>Maximum number of users searchUsers returns, 0 for no limit</td>
+ * <td><b>No</b></td>
+ * <td>100</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/metrics/jmx</td>
+ * <td>Publish timings of connects, binds, DN resolutions, attribute searches, role
+ * lookups and queries as MBeans under com.googlecode.fascinator.authentication.ldap</td>
+ * <td><b>No</b></td>
+ * <td>true</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/async/threads</td>
+ * <td>Number of worker threads running asynchronous logins and lookups</td>
+ * <td><b>No</b></td>
+ * <td>20</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/async/queueSize</td>
+ * <td>Number of asynchronous calls that may wait for a worker before calls are rejected</td>
+ * <td><b>No</b></td>
+ * <td>200</td>
+ * </tr>
+ * <tr>
+ * <td>ldap/async/timeout</td>
+ * <td>Milliseconds after which a login or user lookup is abandoned. When set, logIn and
+ * getUser run on the workers and wait at most this long, 0 runs them on the caller's thread</td>
+ * <td><b>No</b></td>
+ * <td>0</td>
+ * </tr>
  * 
  * </table>
  * 
@@ -150,7 +499,20 @@ public class LDAPAuthentication implements Authentication {
     /** Optional flag indicating the intention to use of system credential when retrieving user attributes */
     private boolean useSystemCredForAttributes;
     
-    private HashMap<String, LDAPUser> userCache;
+    /** Deadline (ms) for logins and lookups, 0 to run them on the caller's thread */
+    private long callTimeout;
+
+    /** Users recently logged in or looked up, keyed by username */
+    private LdapCache<LDAPUser> userCache;
+
+    /** Maximum number of users returned by searchUsers, 0 for no limit */
+    private int searchMaxResults;
+
+    /** Reloads cached users that are about to expire */
+    private LdapRefresher refresher;
+
+    /** Directory lookups of users in flight, keyed by username */
+    private final LdapSingleFlight<String, LDAPUser> userFlight = new LdapSingleFlight<String, LDAPUser>();
 
     @Override
     public String getId() {
@@ -202,11 +564,24 @@ public class LDAPAuthentication implements Authentication {
      * 
      * @param config JSON configuration
      * @throws IOException if fails to initialise
+     * @throws AuthenticationException if no LDAP server is configured
      */
-    private void setConfig(JsonSimpleConfig config) throws IOException {
+    private void setConfig(JsonSimpleConfig config) throws IOException, AuthenticationException {
     	log.debug("Loading the LDAP plugin");
         user_object = new LDAPUser();
         String url = config.getString(null, "authentication", "ldap", "baseURL");
+        List<String> servers = config.getStringList("authentication", "ldap", "servers");
+        if ((url == null || url.trim().length() == 0) && servers != null) {
+            // The servers list may stand in for baseURL
+            StringBuilder urls = new StringBuilder();
+            for (String server : servers) {
+                urls.append(server).append(' ');
+            }
+            url = urls.toString();
+        }
+        if (url == null || url.trim().length() == 0) {
+            throw new AuthenticationException("No LDAP server configured, set authentication/ldap/baseURL or servers.");
+        }
         String baseDN = config.getString(null, "authentication", "ldap", "baseDN");
         String idAttribute = config.getString(null, "authentication", "ldap", "idAttribute");
         String secPrinc = config.getString(null, "authentication", "ldap", "ldapSecurityPrincipal");
@@ -217,13 +592,110 @@ public class LDAPAuthentication implements Authentication {
         useSystemCredForAttributes = config.getBoolean(new Boolean(false), "authentication", "ldap", "useSystemCredForAttributes");
         //Need to get these values from somewhere, ie the config file passed in
         ldapAuth = new LdapAuthenticationHandler(url, baseDN, secPrinc, secCreds, "objectClass", idAttribute);
-        userCache = new HashMap<String, LDAPUser>();
+        String contextFactory = config.getString(null, "authentication", "ldap", "contextFactory");
+        if (contextFactory != null && contextFactory.trim().length() > 0) {
+            ldapAuth.setContextFactory(contextFactory.trim());
+        }
+        ldapAuth.setTimeouts(
+                config.getInteger(LdapAuthenticationHandler.DEFAULT_CONNECT_TIMEOUT, "authentication", "ldap", "timeouts", "connect"),
+                config.getInteger(LdapAuthenticationHandler.DEFAULT_READ_TIMEOUT, "authentication", "ldap", "timeouts", "read"));
+        for (LdapBulkhead.Priority priority : LdapBulkhead.Priority.values()) {
+            String name = priority.name().toLowerCase(Locale.ENGLISH);
+            ldapAuth.getBulkhead().configure(priority,
+                    config.getInteger(priority.getDefaultPermits(), "authentication", "ldap", "bulkhead", name, "permits"),
+                    config.getInteger(priority.getDefaultQueueTimeout(), "authentication", "ldap", "bulkhead", name, "queueTimeout"));
+        }
+        ldapAuth.configureCircuitBreaker(
+                config.getInteger(LdapCircuitBreaker.DEFAULT_FAILURE_THRESHOLD, "authentication", "ldap", "circuitBreaker", "failureThreshold"),
+                config.getInteger(LdapCircuitBreaker.DEFAULT_OPEN_DURATION, "authentication", "ldap", "circuitBreaker", "openDuration"));
+        ldapAuth.configureServers(servers != null ? servers : new ArrayList<String>(),
+                config.getString(null, "authentication", "ldap", "srvDomain"),
+                config.getInteger(LdapServerSet.DEFAULT_HEALTH_CHECK_INTERVAL, "authentication", "ldap", "healthCheckInterval"));
+        ldapAuth.configureConnectionPool(
+                config.getInteger(LdapConnectionPool.DEFAULT_MIN_SIZE, "authentication", "ldap", "pool", "minSize"),
+                config.getInteger(LdapConnectionPool.DEFAULT_MAX_SIZE, "authentication", "ldap", "pool", "maxSize"),
+                config.getInteger(LdapConnectionPool.DEFAULT_MAX_IDLE_TIME, "authentication", "ldap", "pool", "maxIdleTime"),
+                config.getInteger(LdapConnectionPool.DEFAULT_BORROW_TIMEOUT, "authentication", "ldap", "pool", "borrowTimeout"),
+                config.getBoolean(true, "authentication", "ldap", "pool", "validateOnBorrow"),
+                config.getInteger(LdapConnectionPool.DEFAULT_VALIDATION_INTERVAL, "authentication", "ldap", "pool", "validationInterval"));
+        ldapAuth.setSearchLimits(LdapAuthenticationHandler.SearchType.LOOKUP,
+                config.getInteger(0, "authentication", "ldap", "search", "lookup", "countLimit"),
+                config.getInteger(0, "authentication", "ldap", "search", "lookup", "timeLimit"));
+        ldapAuth.setSearchLimits(LdapAuthenticationHandler.SearchType.QUERY,
+                config.getInteger(0, "authentication", "ldap", "search", "query", "countLimit"),
+                config.getInteger(0, "authentication", "ldap", "search", "query", "timeLimit"));
+        ldapAuth.setBatchSize(
+                config.getInteger(LdapAuthenticationHandler.DEFAULT_BATCH_SIZE, "authentication", "ldap", "batchSize"));
+        ldapAuth.setPageSize(
+                config.getInteger(LdapPagedSearch.DEFAULT_PAGE_SIZE, "authentication", "ldap", "search", "pageSize"));
+        searchMaxResults = config.getInteger(100, "authentication", "ldap", "search", "users", "maxResults");
+        ldapAuth.setBindStrategy(LdapBindStrategy.Mode.parse(
+                config.getString("auto", "authentication", "ldap", "bindStrategy")));
+        ldapAuth.setExecutor(new LdapExecutor(
+                config.getInteger(LdapExecutor.DEFAULT_THREADS, "authentication", "ldap", "async", "threads"),
+                config.getInteger(LdapExecutor.DEFAULT_QUEUE_SIZE, "authentication", "ldap", "async", "queueSize")));
+        callTimeout = config.getInteger(0, "authentication", "ldap", "async", "timeout");
+        if (config.getBoolean(true, "authentication", "ldap", "metrics", "jmx")) {
+            ldapAuth.getMetrics().registerMBeans();
+        }
+        ldapAuth.configureDnCache(
+                config.getInteger(LdapCache.DEFAULT_MAX_ENTRIES, "authentication", "ldap", "dnCache", "maxEntries"),
+                config.getInteger(LdapCache.DEFAULT_EXPIRE_AFTER_WRITE, "authentication", "ldap", "dnCache", "ttl"));
+        ldapAuth.configureRoleCache(
+                config.getInteger(LdapCache.DEFAULT_MAX_ENTRIES, "authentication", "ldap", "roleCache", "maxEntries"),
+                config.getInteger(LdapAuthenticationHandler.DEFAULT_ROLE_CACHE_TTL, "authentication", "ldap", "roleCache", "ttl"));
+        if (config.getBoolean(false, "authentication", "ldap", "userIndex", "enabled")) {
+            String snapshotFile = config.getString(null, "authentication", "ldap", "userIndex", "snapshotFile");
+            ldapAuth.configureUserIndex(getUserAttributeNames(),
+                    config.getInteger(LdapUserIndex.DEFAULT_REFRESH_INTERVAL, "authentication", "ldap", "userIndex", "refreshInterval"),
+                    snapshotFile == null ? null : new File(snapshotFile));
+        }
+        if (config.getBoolean(false, "authentication", "ldap", "groups", "enabled")) {
+            ldapAuth.configureGroups(
+                    config.getString(null, "authentication", "ldap", "groups", "baseDN"),
+                    config.getString(null, "authentication", "ldap", "groups", "filter"),
+                    config.getString(LdapGroupIndex.DEFAULT_MEMBER_ATTR, "authentication", "ldap", "groups", "memberAttribute"),
+                    config.getString(LdapGroupIndex.DEFAULT_MEMBER_OF_ATTR, "authentication", "ldap", "groups", "memberOfAttribute"),
+                    config.getInteger(LdapGroupIndex.DEFAULT_REFRESH_INTERVAL, "authentication", "ldap", "groups", "refreshInterval"));
+        }
+        userCache = new LdapCache<LDAPUser>(
+                config.getInteger(LdapCache.DEFAULT_MAX_ENTRIES, "authentication", "ldap", "cache", "maxEntries"),
+                config.getInteger(LdapCache.DEFAULT_EXPIRE_AFTER_WRITE, "authentication", "ldap", "cache", "expireAfterWrite"),
+                config.getInteger(LdapCache.DEFAULT_EXPIRE_AFTER_ACCESS, "authentication", "ldap", "cache", "expireAfterAccess"),
+                config.getBoolean(false, "authentication", "ldap", "cache", "caseSensitive"),
+                config.getInteger(LdapRefresher.DEFAULT_REFRESH_AHEAD, "authentication", "ldap", "cache", "refreshAhead"),
+                config.getInteger(LdapRefresher.DEFAULT_MAX_STALENESS, "authentication", "ldap", "cache", "maxStaleness"));
+        refresher = new LdapRefresher(ldapAuth.getExecutor(),
+                config.getInteger(LdapRefresher.DEFAULT_CONCURRENCY, "authentication", "ldap", "cache", "refreshConcurrency"));
+        if (config.getBoolean(false, "authentication", "ldap", "changeTracking", "enabled")) {
+            ldapAuth.configureChangeTracking(
+                    LdapChangeTracker.Mode.parse(config.getString("auto", "authentication", "ldap", "changeTracking", "mode")),
+                    config.getInteger(LdapChangeTracker.DEFAULT_POLL_INTERVAL, "authentication", "ldap", "changeTracking", "pollInterval"),
+                    new LdapAuthenticationHandler.UserChangeListener() {
+                        @Override
+                        public void userChanged(String username) {
+                            userCache.remove(username);
+                        }
+                    });
+        }
         log.debug("Finished loading the LDAP plugin");
     }
 
     @Override
     public void shutdown() throws AuthenticationException {
-        // Don't need to do anything
+        if (userCache != null) {
+            log.info("LDAP user cache statistics: " + userCache + ", " + refresher);
+        }
+        if (ldapAuth != null) {
+            ldapAuth.shutdown();
+        }
+    }
+
+    /**
+     * @return the cache of LDAP users, for statistics
+     */
+    public LdapCache<LDAPUser> getUserCache() {
+        return userCache;
     }
 
     /**
@@ -236,16 +708,65 @@ public class LDAPAuthentication implements Authentication {
      */
     @Override
     public User logIn(String username, String password) throws AuthenticationException {
+        if (callTimeout > 0) {
+            try {
+                return await(logInAsync(username, password), "login", username);
+            } catch (RejectedExecutionException ree) {
+                throw new AuthenticationException("Too many concurrent LDAP logins, try again later.");
+            }
+        }
+        return doLogIn(username, password);
+    }
+
+    /**
+     * Tests the user's username/password validity on a worker thread,
+     * abandoning the attempt after the configured timeout.
+     *
+     * @param username The username of the user logging in.
+     * @param password The password of the user logging in.
+     * @return The future user object for the newly logged in user.
+     * @throws RejectedExecutionException if too many calls are already waiting.
+     */
+    public Future<User> logInAsync(final String username, final String password) {
+        return ldapAuth.getExecutor().submit(new Callable<User>() {
+            @Override
+            public User call() throws AuthenticationException {
+                return doLogIn(username, password);
+            }
+        }, callTimeout);
+    }
+
+    /**
+     * Tests the user's username/password validity on the current thread.
+     *
+     * @param username The username of the user logging in.
+     * @param password The password of the user logging in.
+     * @return A user object for the newly logged in user.
+     * @throws AuthenticationException if there was an error logging in.
+     */
+    private User doLogIn(String username, String password) throws AuthenticationException {
         //Check to see if users authorised.
     	log.debug("Attempting to login via LDAP username: " + username);
-        if (ldapAuth.authenticate(username,password)) {
-            //Return a user object.
-            LDAPUser user = (LDAPUser) getCustomAttributes((LDAPUser)getUser(username));
-            userCache.put(user.getUsername(), user);
-            return user;
-        } else {
+        Set<String> attrNames = getUserAttributeNames();
+        Map<String, String> values;
+        try {
+            if (useSystemCredForAttributes) {
+                values = ldapAuth.authenticateAndFetch(username, password, Collections.<String>emptyList()) != null
+                        ? ldapAuth.getAttrValues(username, attrNames) : null;
+            } else {
+                //Read the user's own entry on the connection they just bound
+                values = ldapAuth.authenticateAndFetch(username, password, attrNames);
+            }
+        } catch (NamingException ne) {
+            throw new AuthenticationException("LDAP directory unavailable, try again later.", ne);
+        }
+        if (values == null) {
             throw new AuthenticationException("Invalid password or username.");
         }
+        //Return a user object.
+        LDAPUser user = buildUser(username, values);
+        userCache.put(user.getUsername(), user);
+        return user;
     }
 
     /**
@@ -259,8 +780,9 @@ public class LDAPAuthentication implements Authentication {
     public void logOut(User user) throws AuthenticationException {
     	if (user instanceof LDAPUser) {
     		String username = ((LDAPUser)user).getUsername();
-    		log.info("User logged out, removed from user cache:" + username);
+    		log.info("User logged out, removed from user and role caches:" + username);
         	userCache.remove(username);
+        	ldapAuth.invalidateRoles(username);
     	} else {
     		log.info("User logged out, but not an LDAPUser, doing nothing.");
     	}
@@ -366,38 +888,273 @@ public class LDAPAuthentication implements Authentication {
      */
     @Override
     public User getUser(String username) throws AuthenticationException {
-    	// will have to cache, to avoid performance hit when querying every time...
-    	if (userCache.containsKey(username)) {
-    		return userCache.get(username);
+        if (callTimeout > 0) {
+            try {
+                return await(getUserAsync(username), "lookup", username);
+            } catch (RejectedExecutionException ree) {
+                throw new AuthenticationException("Too many concurrent LDAP lookups, try again later.");
+            }
+        }
+        return doGetUser(username);
+    }
+
+    /**
+     * Looks a user up on a worker thread, abandoning the lookup after the
+     * configured timeout. Cached users are returned without a thread hop.
+     *
+     * @param username The username of the user required.
+     * @return The future user object of the requested user.
+     * @throws RejectedExecutionException if too many calls are already waiting.
+     */
+    public Future<User> getUserAsync(final String username) {
+    	LDAPUser cached = getCachedUser(username);
+    	if (cached != null) {
+    		return LdapExecutor.<User>completed(cached);
     	}
-        //Get a new user object and try to find the users common name
-        user_object = new LDAPUser();
-        String cn = ldapAuth.getAttr(username,"cn");
+        return ldapAuth.getExecutor().submit(new Callable<User>() {
+            @Override
+            public User call() {
+                return doGetUser(username);
+            }
+        }, callTimeout);
+    }
+
+    /**
+     * Looks a user up on the current thread. Concurrent lookups of the same
+     * uncached user share a single directory search.
+     *
+     * @param username The username of the user required.
+     * @return An user object of the requested user.
+     */
+    private User doGetUser(final String username) {
+    	LDAPUser cached = getCachedUser(username);
+    	if (cached != null) {
+    		return cached;
+    	}
+        try {
+            return userFlight.execute(userCache.normaliseKey(username), new Callable<LDAPUser>() {
+                @Override
+                public LDAPUser call() {
+                    return loadUser(username);
+                }
+            });
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw (Error) ee.getCause();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted looking up " + username);
+        }
+    }
+
+    /**
+     * Looks up many users at once. Users not cached are read from the
+     * directory with a few batched searches instead of one search each, and
+     * are cached for later calls.
+     *
+     * @param usernames The usernames of the users required.
+     * @return A user object for each distinct username, in the order given.
+     */
+    public List<User> getUsers(Collection<String> usernames) {
+        Map<String, LDAPUser> users = new LinkedHashMap<String, LDAPUser>();
+        List<String> missing = new ArrayList<String>();
+        for (String username : usernames) {
+            if (!users.containsKey(username)) {
+                LDAPUser cached = getCachedUser(username);
+                users.put(username, cached);
+                if (cached == null) {
+                    missing.add(username);
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            Set<String> attrNames = getUserAttributeNames();
+            Map<String, Map<String, String>> found = ldapAuth.getUsers(missing, attrNames);
+            for (String username : missing) {
+                Map<String, String> values = found.get(username);
+                LDAPUser user;
+                if (values != null) {
+                    user = buildUser(username, values);
+                    userCache.put(username, user);
+                } else {
+                    user = buildUser(username, blankValues(attrNames));
+                }
+                users.put(username, user);
+            }
+        }
+        return new ArrayList<User>(users.values());
+    }
+
+    /**
+     * Returns a cached user, starting a background refresh if the entry is
+     * close to expiry. Expired entries are served for up to the configured
+     * staleness while they are refreshed.
+     *
+     * @param username The username of the user required.
+     * @return The cached user, or null if there is none to serve.
+     */
+    private LDAPUser getCachedUser(final String username) {
+        LdapCache.Lookup<LDAPUser> cached = userCache.lookup(username);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.isRefreshDue()) {
+            refresher.schedule(username, new Runnable() {
+                @Override
+                public void run() {
+                    refreshUser(username);
+                }
+            });
+        }
+        return cached.getValue();
+    }
+
+    /**
+     * Reloads a cached user. A user no longer in the directory is dropped
+     * from the cache; if the directory cannot be asked the cached copy is
+     * kept until it is too stale to serve.
+     *
+     * @param username The username of the user to reload.
+     */
+    private void refreshUser(String username) {
+        try {
+            Map<String, String> values = ldapAuth.findAttrValues(username, getUserAttributeNames());
+            if (values != null) {
+                userCache.put(username, buildUser(username, values));
+            } else {
+                userCache.remove(username);
+            }
+        } catch (NamingException ne) {
+            log.debug("Failed to refresh LDAP user " + username, ne);
+        }
+    }
+
+    /**
+     * Reads a user from the directory, caching them if found.
+     *
+     * @param username The username of the user required.
+     * @return An user object of the requested user.
+     */
+    private LDAPUser loadUser(String username) {
+        //Get a new user object and try to find the users common name,
+        //fetching it along with the custom attributes in a single search
+        Set<String> attrNames = getUserAttributeNames();
+        try {
+            Map<String, String> values = ldapAuth.findAttrValues(username, attrNames);
+            if (values != null) {
+                LDAPUser user = buildUser(username, values);
+                userCache.put(username, user);
+                return user;
+            }
+        } catch (NamingException ne) {
+            log.warn("Failed LDAP lookup of user " + username, ne);
+        }
+        return buildUser(username, blankValues(attrNames));
+    }
+
+    /**
+     * @param attrNames The attribute names.
+     * @return A map of each attribute name to an empty string, for users
+     *         that could not be found.
+     */
+    private Map<String, String> blankValues(Set<String> attrNames) {
+        Map<String, String> blank = new HashMap<String, String>();
+        for (String attrName : attrNames) {
+            blank.put(attrName, "");
+        }
+        return blank;
+    }
+
+    /**
+     * @return cn and the custom attribute names, the attributes read for
+     *         every user
+     */
+    private Set<String> getUserAttributeNames() {
+        Set<String> attrNames = getCustomAttributeNames();
+        attrNames.add("cn");
+        return attrNames;
+    }
+
+    /**
+     * Builds a user from the values of cn and the custom attributes.
+     *
+     * @param username The username of the user.
+     * @param values Attribute values keyed by attribute name.
+     * @return A new user object.
+     */
+    private LDAPUser buildUser(String username, Map<String, String> values) {
+        LDAPUser user = new LDAPUser();
+        String cn = values.get("cn");
 	    if (cn.equals("")) {
 	        //Initialise the user with displayname the same as the username
-	        user_object.init(username);
+	        user.init(username);
 	    } else {
 	        //Initialise the user with different displayname and username
-	        user_object.init(username,cn);
+	        user.init(username,cn);
 	    }
-	    getCustomAttributes(user_object);
-        return user_object;
+	    applyCustomAttributes(user, values);
+        return user;
     }
+
     /**
-     * Retrieves user attributes and builds the display name.
+     * Waits for an asynchronous login or lookup.
+     *
+     * @param future The pending call.
+     * @param operation Name of the call, for error messages.
+     * @param username The user concerned, for error messages.
+     * @return The user object produced by the call.
+     * @throws AuthenticationException if the call failed or timed out.
+     */
+    private User await(Future<User> future, String operation, String username)
+            throws AuthenticationException {
+        try {
+            return future.get();
+        } catch (CancellationException ce) {
+            throw new AuthenticationException("LDAP " + operation + " timed out for user " + username);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new AuthenticationException("Interrupted during LDAP " + operation);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof AuthenticationException) {
+                throw (AuthenticationException) ee.getCause();
+            }
+            throw new AuthenticationException(ee.getCause());
+        }
+    }
+    /**
+     * Lists the configured display name and user attributes, without
+     * duplicates.
+     * 
+     * @return the attribute names, in configuration order
+     */
+    private Set<String> getCustomAttributeNames() {
+    	Set<String> attrNames = new LinkedHashSet<String>();
+    	if (displayNameAttributes != null) {
+    		attrNames.addAll(displayNameAttributes);
+    	}
+    	if (userAttributes != null) {
+    		attrNames.addAll(userAttributes);
+    	}
+    	return attrNames;
+    }
+
+    /**
+     * Sets user attributes and builds the display name from already retrieved
+     * attribute values.
      * 
      * @param user
+     * @param values attribute values keyed by attribute name
      * @return the same user instance but with the additional attributes.
      */
-    private User getCustomAttributes(LDAPUser user) {
-    	if (useSystemCredForAttributes) {
-    		ldapAuth.useSystemCred();
-    	}
+    private User applyCustomAttributes(LDAPUser user, Map<String, String> values) {
     	if (displayNameAttributes != null && displayNameAttributes.size() > 0) {
     		// use the displayNameAttributes to build the display name
         	StringBuilder nameBuff = new StringBuilder();
         	for (String dispNameAttr : displayNameAttributes) {
-        		String nameAttrVal = ldapAuth.getAttr(user.getUsername(), dispNameAttr); 
+        		String nameAttrVal = values.get(dispNameAttr); 
         		nameBuff.append(nameAttrVal);
         		nameBuff.append(displayNameDelimiter);
         	}
@@ -406,7 +1163,7 @@ public class LDAPAuthentication implements Authentication {
     	if (userAttributes != null && userAttributes.size() > 0) {
         	log.info("LDAP User retrieving attributes...");
         	for (String userAttr : userAttributes) {
-        		String attrVal = ldapAuth.getAttr(user.getUsername(), userAttr);
+        		String attrVal = values.get(userAttr);
         		user.set(userAttr, attrVal);
         		log.info("Retrieved attribute: " + userAttr + ", value:" + attrVal);
         	}
@@ -415,7 +1172,8 @@ public class LDAPAuthentication implements Authentication {
     }
 
     /**
-     * Returns a list of users matching the search.
+     * Returns a list of users whose username or common name contains the
+     * search string, up to the configured maximum. The users found are cached.
      *
      * @param search The search string to execute.
      * @return A list of usernames (String) that match the search.
@@ -423,8 +1181,14 @@ public class LDAPAuthentication implements Authentication {
      */
     @Override
     public List<User> searchUsers(String search) throws AuthenticationException {
-        //Just return an empty list for now
         List<User> found = new ArrayList<User>();
+        Map<String, Map<String, String>> users = ldapAuth.searchUsers(search,
+                getUserAttributeNames(), searchMaxResults);
+        for (Map.Entry<String, Map<String, String>> entry : users.entrySet()) {
+            LDAPUser user = buildUser(entry.getKey(), entry.getValue());
+            userCache.put(user.getUsername(), user);
+            found.add(user);
+        }
         return found;
     }
 
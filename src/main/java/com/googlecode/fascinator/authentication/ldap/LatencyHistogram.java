@@ -0,0 +1,136 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in microseconds. Values below 32 are
+ * counted exactly; larger values fall into one of 16 linear sub-buckets per
+ * power of two, so percentiles are accurate to within about 6%, in the
+ * manner of HdrHistogram.
+ */
+public class LatencyHistogram {
+
+	/** Sub-buckets per power of two */
+	private static final int SUB_BUCKET_BITS = 4;
+
+	/** Values below this are counted exactly */
+	private static final int LINEAR_LIMIT = 32;
+
+	/** Largest power of two tracked; larger values count as the maximum */
+	private static final int MAX_EXPONENT = 40;
+
+	private static final int BUCKETS = LINEAR_LIMIT
+			+ (MAX_EXPONENT - 4) * (1 << SUB_BUCKET_BITS);
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a latency
+	 *
+	 * @param micros
+	 *            the latency in microseconds
+	 */
+	public void record(long micros) {
+		long value = Math.max(0, micros);
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return number of values recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return mean of the values recorded, in microseconds
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @return largest value recorded, in microseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Estimates a percentile
+	 *
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the estimated value in microseconds, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+		rank = Math.max(1, rank);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return i == BUCKETS - 1 ? max.get() : Math.min(upperBoundOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	private static int indexOf(long value) {
+		if (value < LINEAR_LIMIT) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent >= MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+		return LINEAR_LIMIT + (exponent - 5) * (1 << SUB_BUCKET_BITS) + sub;
+	}
+
+	private static long upperBoundOf(int index) {
+		if (index < LINEAR_LIMIT) {
+			return index;
+		}
+		int offset = index - LINEAR_LIMIT;
+		int exponent = 5 + offset / (1 << SUB_BUCKET_BITS);
+		int sub = offset % (1 << SUB_BUCKET_BITS);
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + (sub + 1) * width - 1;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Reads values straight from JNDI attributes. Every value of a multi-valued
+ * attribute is kept, values containing colons are returned intact and binary
+ * values (such as jpegPhoto or certificates) are Base64 encoded.
+ */
+public final class LdapAttributeDecoder {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private LdapAttributeDecoder() {
+	}
+
+	/**
+	 * Decodes a single attribute value
+	 *
+	 * @param value
+	 *            a value as returned by JNDI
+	 * @return the value as a string, Base64 encoded if binary
+	 */
+	public static String decode(Object value) {
+		if (value == null) {
+			return "";
+		}
+		if (value instanceof String) {
+			return (String) value;
+		}
+		if (value instanceof byte[]) {
+			return new String(Base64.encodeBase64((byte[]) value), ASCII);
+		}
+		return value.toString();
+	}
+
+	/**
+	 * Decodes the first value of an attribute
+	 *
+	 * @param attr
+	 *            an attribute, may be null
+	 * @return the first value, or an empty string if there is none
+	 * @throws NamingException
+	 */
+	public static String firstValue(Attribute attr) throws NamingException {
+		if (attr == null || attr.size() == 0) {
+			return "";
+		}
+		return decode(attr.get(0));
+	}
+
+	/**
+	 * Decodes every value of an attribute
+	 *
+	 * @param attr
+	 *            an attribute, may be null
+	 * @return the values, empty if there are none
+	 * @throws NamingException
+	 */
+	public static List<String> values(Attribute attr) throws NamingException {
+		if (attr == null || attr.size() == 0) {
+			return Collections.emptyList();
+		}
+		int size = attr.size();
+		List<String> values = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			values.add(decode(attr.get(i)));
+		}
+		return values;
+	}
+
+	/**
+	 * Decodes every value of an attribute and joins them with ", ", the form
+	 * single-valued lookups have always returned for multi-valued attributes
+	 *
+	 * @param attr
+	 *            an attribute, may be null
+	 * @return the joined values, or an empty string if there are none
+	 * @throws NamingException
+	 */
+	public static String joinedValues(Attribute attr) throws NamingException {
+		if (attr == null || attr.size() == 0) {
+			return "";
+		}
+		int size = attr.size();
+		if (size == 1) {
+			return decode(attr.get(0));
+		}
+		StringBuilder joined = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				joined.append(", ");
+			}
+			joined.append(decode(attr.get(i)));
+		}
+		return joined.toString();
+	}
+}
@@ -19,15 +19,34 @@
  */
 package com.googlecode.fascinator.authentication.ldap;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.naming.Context;
+import javax.naming.InvalidNameException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
@@ -35,7 +54,8 @@ import javax.naming.directory.SearchControls;
 import javax.naming.NamingEnumeration;
 import javax.naming.directory.SearchResult;
 import javax.naming.directory.Attributes;
-import javax.naming.directory.Attribute;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
 
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
@@ -51,12 +71,53 @@ import org.slf4j.LoggerFactory;
  */
 public class LdapAuthenticationHandler {
 
+	/**
+	 * Kinds of directory search, each with its own size and time limits
+	 */
+	public enum SearchType {
+		/** Searches for a single user by their identifier */
+		LOOKUP,
+		/** Free-form searches through getAllAttrValues */
+		QUERY
+	}
+
+	/**
+	 * Told when a user's entry changes in the directory
+	 */
+	public interface UserChangeListener {
+
+		/**
+		 * Called on a change tracking thread once the handler has dropped
+		 * what it cached about the user
+		 * 
+		 * @param username
+		 *            the user whose entry was added, modified, renamed or
+		 *            deleted
+		 */
+		void userChanged(String username);
+	}
+
 	/** Logging */
 	private Logger log = LoggerFactory
 			.getLogger(LdapAuthenticationHandler.class);
 
-	/** LDAP environment */
-	private Hashtable<String, String> env;
+	/** Default time (ms) to wait for a connection to the server */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+	/** Default time (ms) to wait for the server to answer a request */
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+	/** LDAP environment of the system principal, never modified once built */
+	private volatile Hashtable<String, String> env;
+
+	/** JNDI factory creating the directory contexts */
+	private String contextFactory = "com.sun.jndi.ldap.LdapCtxFactory";
+
+	/** Time (ms) to wait for a connection to the server, 0 for no limit */
+	private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+	/** Time (ms) to wait for the server to answer a request, 0 for no limit */
+	private long readTimeout = DEFAULT_READ_TIMEOUT;
 
 	/** LDAP Base DN */
 	private String baseDn;
@@ -82,7 +143,112 @@ public class LdapAuthenticationHandler {
 	/** Suffix for the LDAP query filter */
 	private String filterSuffix = "";
 
-	private Map<String, List<String>> ldapRolesMap;
+	/** Fascinator roles keyed by normalised LDAP role, compiled once from the configured map */
+	private Map<String, List<String>> roleIndex = Collections.emptyMap();
+
+	/** Default time (ms) a user's roles are cached */
+	public static final int DEFAULT_ROLE_CACHE_TTL = 300000;
+
+	/** Normalised role attribute values, keyed by username */
+	private volatile LdapCache<Set<String>> roleCache = new LdapCache<Set<String>>(
+			LdapCache.DEFAULT_MAX_ENTRIES, DEFAULT_ROLE_CACHE_TTL, 0, false);
+
+	/** Most levels of nested groups searched through before the group index is built */
+	private static final int MAX_GROUP_DEPTH = 10;
+
+	/** Where groups are searched for, null while group roles are disabled */
+	private volatile String groupBaseDn;
+
+	/** Filter matching group entries */
+	private String groupFilter = LdapGroupIndex.DEFAULT_GROUP_FILTER;
+
+	/** Attribute of a group listing its members' DNs */
+	private String memberAttr = LdapGroupIndex.DEFAULT_MEMBER_ATTR;
+
+	/** Attribute of a user listing the DNs of their groups, blank if none */
+	private String memberOfAttr = LdapGroupIndex.DEFAULT_MEMBER_OF_ATTR;
+
+	/** Nested group membership, rebuilt periodically once groups are configured */
+	private volatile LdapGroupIndex groupIndex = LdapGroupIndex.EMPTY;
+
+	/** Rebuilds the group index, null if it is not rebuilt */
+	private ScheduledExecutorService groupRefresher;
+
+	/** Snapshot of the users under the base DN, rebuilt periodically once configured */
+	private volatile LdapUserIndex userIndex = LdapUserIndex.EMPTY;
+
+	/** Attributes held for each user by the snapshot */
+	private volatile List<String> userIndexAttrs = Collections.emptyList();
+
+	/** Where the user snapshot is saved, null if it is not */
+	private volatile File userIndexFile;
+
+	/** Rebuilds the user snapshot, null if it is not rebuilt */
+	private ScheduledExecutorService userRefresher;
+
+	/** Time (ms) the group index is rebuilt after a group changes */
+	private static final long GROUP_REBUILD_DELAY = 5000;
+
+	/** Whether a rebuild of the group index after a change is scheduled */
+	private final AtomicBoolean groupRebuildPending = new AtomicBoolean();
+
+	/** When each changed user changed, by lower cased username, until the next snapshot */
+	private final ConcurrentHashMap<String, Long> changedUsers = new ConcurrentHashMap<String, Long>();
+
+	/** Watches for changed entries, null if changes are not tracked */
+	private volatile LdapChangeTracker changeTracker;
+
+	/** Maximum number of entries a user lookup may return, 0 for no limit */
+	private long lookupCountLimit = 0;
+
+	/** Time (ms) a user lookup may take on the server, 0 for no limit */
+	private int lookupTimeLimit = 0;
+
+	/** Maximum number of entries a free-form query may return, 0 for no limit */
+	private long queryCountLimit = 0;
+
+	/** Time (ms) a free-form query may take on the server, 0 for no limit */
+	private int queryTimeLimit = 0;
+
+	/** Timings of directory operations */
+	private final LdapMetrics metrics = new LdapMetrics();
+
+	/** DNs that users have successfully been resolved to, keyed by username */
+	private volatile LdapCache<String> dnCache = new LdapCache<String>();
+
+	/** Decides whether to bind the template DN or search for the DN first */
+	private volatile LdapBindStrategy bindStrategy = new LdapBindStrategy(LdapBindStrategy.Mode.AUTO);
+
+	/** Default number of users looked up by each search of a batch */
+	public static final int DEFAULT_BATCH_SIZE = 50;
+
+	/** Number of users looked up by each search of a batch */
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/** Number of entries requested per page of a paged search */
+	private int pageSize = LdapPagedSearch.DEFAULT_PAGE_SIZE;
+
+	/** DN searches in flight, keyed by username */
+	private final LdapSingleFlight<String, String> dnFlight = new LdapSingleFlight<String, String>();
+
+	/** Role lookups in flight, keyed by username */
+	private final LdapSingleFlight<String, Set<String>> roleFlight = new LdapSingleFlight<String, Set<String>>();
+
+	/** Shares directory capacity between logins, lookups and bulk queries */
+	private final LdapBulkhead bulkhead = new LdapBulkhead();
+
+	/** Fails directory calls fast while the directory keeps failing */
+	private volatile LdapCircuitBreaker circuitBreaker = new LdapCircuitBreaker();
+
+	/** The servers behind baseUrl, with their health and latency */
+	private volatile LdapServerSet serverSet;
+
+	/** Pool of connections bound as the system principal, used for searches */
+	private volatile LdapConnectionPool connectionPool;
+
+	/** Runs the asynchronous variants of the lookups */
+	private volatile LdapExecutor executor = new LdapExecutor(
+			LdapExecutor.DEFAULT_THREADS, LdapExecutor.DEFAULT_QUEUE_SIZE);
 
 	/**
 	 * Creates an LDAP authenticator for the specified server and base DN, using
@@ -125,16 +291,13 @@ public class LdapAuthenticationHandler {
 		this.ldapSecurityPrincipal = ldapSecurityPrincipal;
 		this.ldapSecurityCredentials = ldapSecurityCredentials;
 		// Initialise the LDAP environment
-		env = new Hashtable<String, String>();
-		env.put(Context.INITIAL_CONTEXT_FACTORY,
-				"com.sun.jndi.ldap.LdapCtxFactory");
-		env.put(Context.PROVIDER_URL, baseUrl);
-		env.put(Context.SECURITY_AUTHENTICATION, "simple");
-		if (!ldapSecurityPrincipal.equals("") ) {
-			env.put(Context.SECURITY_PRINCIPAL, ldapSecurityPrincipal);
- 			env.put(Context.SECURITY_CREDENTIALS, ldapSecurityCredentials);
-		}
-
+		env = createEnvironment(ldapSecurityPrincipal, ldapSecurityCredentials);
+		serverSet = new LdapServerSet(LdapServerSet.parseUrls(baseUrl), null);
+		connectionPool = new LdapConnectionPool(env);
+		connectionPool.setMetrics(metrics);
+		connectionPool.setServerSet(serverSet);
+		metrics.addMBean("LdapCircuitBreaker", circuitBreaker);
+		metrics.addMBean("LdapBulkhead", bulkhead);
 	}
 
 	/**
@@ -162,7 +325,7 @@ public class LdapAuthenticationHandler {
       			String ldapRoleAttr,
 			String idAttr, Map<String, List<String>> ldapRolesMap) {
 		this(baseUrl, baseDn, ldapSecurityPrincipal, ldapSecurityCredentials, ldapRoleAttr, idAttr);
-		this.ldapRolesMap = ldapRolesMap;
+		this.roleIndex = compileRoleIndex(ldapRolesMap);
 	}
 
 	/**
@@ -195,7 +358,8 @@ public class LdapAuthenticationHandler {
 	}
 
 	/**
-	 * Attempts to authenticate user credentials with the LDAP server
+	 * Attempts to authenticate user credentials with the LDAP server, then
+	 * reads the user's own entry on the same connection.
 	 * 
 	 * @param username
 	 *            a username
@@ -203,29 +367,89 @@ public class LdapAuthenticationHandler {
 	 *            a password
 	 * @param dn
 	 *            if precise dn known, otherwise should be empty string
-	 * @return <code>true</code> if authentication was successful,
-	 *         <code>false</code> otherwise
+	 * @param returningAttrs
+	 *            the attributes to read from the user's entry, empty for none
+	 * @return the requested attributes if authentication was successful,
+	 *         <code>null</code> otherwise
+	 * @throws NamingException
+	 *             if no server could be reached or answered in time
 	 */
-	private boolean doAuthenticate(String username, String password, String dn) {
+	private Attributes doAuthenticate(String username, String password, String dn, String[] returningAttrs) throws NamingException {
+		// An empty password would make the server treat the bind as anonymous
+		if (password == null || password.equals("")) {
+			return null;
+		}
+		LdapCircuitBreaker breaker = circuitBreaker;
+		NamingException error = null;
+		boolean permitted = false;
 		try {
+			bulkhead.acquire(LdapBulkhead.Priority.INTERACTIVE);
+			permitted = true;
+			breaker.check();
 			String principal;
 			// Either form the dn, or use the given one
 			if (dn.equals("")) {
-				principal = String.format("%s=%s,%s", idAttr, username, baseDn);
+				principal = templateDn(username);
 			} else {
 				principal = dn;
 			}
 			log.debug("principal string is:" + principal);
-			env.put(Context.SECURITY_PRINCIPAL, principal);
-			env.put(Context.SECURITY_CREDENTIALS, password);
-			DirContext ctx = new InitialDirContext(env);
-			ctx.lookup(principal);
-			ctx.close();
-			return true;
+			// Try the preferred server first, moving on only if it cannot be
+			// reached; a rejected password is the same answer everywhere
+			LdapServerSet servers = serverSet;
+			DirContext ctx = null;
+			String server = null;
+			NamingException unreachable = null;
+			for (LdapServerSet.Server candidate : servers.getServersToTry()) {
+				// Each bind gets its own environment so that concurrent logins
+				// never see each other's credentials
+				Hashtable<String, String> bindEnv = createEnvironment(principal, password);
+				bindEnv.put(Context.PROVIDER_URL, candidate.getUrl());
+				long start = System.nanoTime();
+				try {
+					ctx = new InitialDirContext(bindEnv);
+				} catch (NamingException ne) {
+					metrics.record(LdapMetrics.Operation.BIND, candidate.getUrl(), start, ne);
+					servers.recordFailure(candidate.getUrl(), ne);
+					if (!LdapServerSet.isUnreachable(ne)) {
+						throw ne;
+					}
+					unreachable = ne;
+					continue;
+				}
+				metrics.record(LdapMetrics.Operation.BIND, candidate.getUrl(), start, null);
+				servers.recordSuccess(candidate.getUrl(), start);
+				server = candidate.getUrl();
+				break;
+			}
+			if (ctx == null) {
+				throw unreachable;
+			}
+
+			long start = System.nanoTime();
+			NamingException readError = null;
+			try {
+				return ctx.getAttributes(principal, returningAttrs);
+			} catch (NamingException ne) {
+				readError = ne;
+				throw ne;
+			} finally {
+				metrics.record(LdapMetrics.Operation.ATTRIBUTE_SEARCH, server, start, readError);
+				ctx.close();
+			}
 		} catch (NamingException ne) {
+			error = ne;
+			if (LdapCircuitBreaker.isFailure(ne)) {
+				throw ne;
+			}
 			log.warn("Failed LDAP lookup doAuthenticate", ne);
+		} finally {
+			if (permitted) {
+				bulkhead.release(LdapBulkhead.Priority.INTERACTIVE);
+			}
+			breaker.record(error);
 		}
-		return false;
+		return null;
 	}
 
 	/**
@@ -240,44 +464,220 @@ public class LdapAuthenticationHandler {
 	 *         <code>false</code> otherwise
 	 */
 	public boolean authenticate(String username, String password) {
-		// Test with default settings
-		if (doAuthenticate(username, password, "")) {
-			return true;
-		} else {
+		try {
+			return authenticateEntry(username, password, new String[0]) != null;
+		} catch (NamingException ne) {
+			log.warn("LDAP directory unavailable for authenticate", ne);
+			return false;
+		}
+	}
+
+	/**
+	 * Authenticates a user and reads attributes from their own entry using the
+	 * connection just bound as them, so a successful login needs only one
+	 * connection and, when the DN is cached, two directory operations.
+	 * 
+	 * @param username
+	 *            a username
+	 * @param password
+	 *            a password
+	 * @param attrNames
+	 *            the names of the attributes to read
+	 * @return a map of attribute name to value, with an empty string for any
+	 *         attribute the entry does not have, or <code>null</code> if
+	 *         authentication failed
+	 * @throws NamingException
+	 *             if the directory could not be reached or answered in time,
+	 *             so the credentials could not be checked
+	 */
+	public Map<String, String> authenticateAndFetch(String username, String password, Collection<String> attrNames) throws NamingException {
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for (String attrName : attrNames) {
+			values.put(attrName, "");
+		}
+		Attributes entry = authenticateEntry(username, password,
+				values.keySet().toArray(new String[values.size()]));
+		if (entry == null) {
+			return null;
+		}
+		try {
+			for (String attrName : values.keySet()) {
+				if (entry.get(attrName) != null) {
+					values.put(attrName, getAttrValue(attrName, entry));
+				}
+			}
+		} catch (NamingException ne) {
+			log.warn("Failed reading attributes of " + username, ne);
+		}
+		return values;
+	}
+
+	/**
+	 * Tries to authenticate user against the DN they were last resolved to.
+	 * Otherwise tries the default settings and searches for the DN of the
+	 * user, in the order chosen by the bind strategy.
+	 * 
+	 * @param username
+	 *            a username
+	 * @param password
+	 *            a password
+	 * @param returningAttrs
+	 *            the attributes to read from the user's entry, empty for none
+	 * @return the requested attributes if authentication was successful,
+	 *         <code>null</code> otherwise
+	 * @throws NamingException
+	 *             if the directory could not be reached or answered in time
+	 */
+	private Attributes authenticateEntry(String username, String password, String[] returningAttrs) throws NamingException {
+		String cachedDn = dnCache.get(username);
+		if (cachedDn == null) {
+			cachedDn = userIndexFor(username).getDn(username);
+		}
+		if (cachedDn != null) {
+			Attributes entry = doAuthenticate(username, password, cachedDn, returningAttrs);
+			if (entry != null) {
+				return entry;
+			}
+			// The cached DN may be stale, resolve it again
+			dnCache.remove(username);
+			String dn = getDN(username);
+			if (dn.equals("")) {
+				return null;
+			}
+			dnCache.put(username, dn);
+			// Same DN again means the password was wrong, no need to retry
+			if (sameDn(dn, cachedDn)) {
+				return null;
+			}
+			return doAuthenticate(username, password, dn, returningAttrs);
+		}
+
+		String templateDn = templateDn(username);
+		LdapBindStrategy strategy = bindStrategy;
+		if (strategy.useTemplateFirst()) {
+			// Test with default settings
+			Attributes entry = doAuthenticate(username, password, templateDn, returningAttrs);
+			if (entry != null) {
+				strategy.recordTemplateMatch(true);
+				dnCache.put(username, templateDn);
+				return entry;
+			}
 			// Now try same after searching for the dn
-			return doAuthenticate(username, password, getDN(username));
+			String dn = getDN(username);
+			if (dn.equals("")) {
+				return null;
+			}
+			boolean matched = sameDn(dn, templateDn);
+			strategy.recordTemplateMatch(matched);
+			dnCache.put(username, dn);
+			// Same DN as the template means the password was wrong
+			if (matched) {
+				return null;
+			}
+			return doAuthenticate(username, password, dn, returningAttrs);
+		}
+
+		String dn = getDN(username);
+		if (dn.equals("")) {
+			// Not found by searching, the template is the last chance
+			Attributes entry = doAuthenticate(username, password, templateDn, returningAttrs);
+			if (entry != null) {
+				strategy.recordTemplateMatch(true);
+				dnCache.put(username, templateDn);
+			}
+			return entry;
+		}
+		strategy.recordTemplateMatch(sameDn(dn, templateDn));
+		dnCache.put(username, dn);
+		return doAuthenticate(username, password, dn, returningAttrs);
+	}
+
+	/**
+	 * Authenticates on a worker thread
+	 * 
+	 * @param username
+	 *            a username
+	 * @param password
+	 *            a password
+	 * @param deadline
+	 *            time (ms) after which the attempt is cancelled, 0 for none
+	 * @return the future result of {@link #authenticate(String, String)}
+	 */
+	public Future<Boolean> authenticateAsync(final String username, final String password, long deadline) {
+		return executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return authenticate(username, password);
+			}
+		}, deadline);
+	}
+
+	/**
+	 * @param username
+	 *            a username
+	 * @return the DN the user's entry has if it sits directly under the base
+	 *         DN, named by the identifier attribute
+	 */
+	private String templateDn(String username) {
+		return String.format("%s=%s,%s", idAttr, Rdn.escapeValue(username), baseDn);
+	}
+
+	/**
+	 * Compares two DNs, ignoring case and insignificant whitespace
+	 * 
+	 * @param dn1
+	 * @param dn2
+	 * @return <code>true</code> if both name the same entry
+	 */
+	private boolean sameDn(String dn1, String dn2) {
+		try {
+			return new LdapName(dn1).equals(new LdapName(dn2));
+		} catch (InvalidNameException ine) {
+			return dn1.equalsIgnoreCase(dn2);
 		}
 	}
 
 	/**
 	 * Tries to find the dn of the given username so that a user can be
-	 * authenticated.
+	 * authenticated. Concurrent calls for the same username share a single
+	 * search.
+	 * 
+	 * @param username
+	 *            a username
+	 * @return The DN of the user if successful, otherwise an empty string.
+	 */
+	String getDN(final String username) {
+		return coalesce(dnFlight, dnCache.normaliseKey(username), new Callable<String>() {
+			@Override
+			public String call() {
+				return resolveDn(username);
+			}
+		}, "");
+	}
+
+	/**
+	 * Searches for the dn of the given username.
 	 * 
 	 * @param username
 	 *            a username
 	 * @return The DN of the user if successful, otherwise an empty string.
 	 */
-	private String getDN(String username) {
+	private String resolveDn(String username) {
+		LdapConnectionPool.Connection conn = null;
+		long start = System.nanoTime();
+		NamingException error = null;
 		try {
-			// Create a new environment since the original one has probably been
-			// authenticated (and rejected) against.
-			Hashtable<String, String> env1 = new Hashtable<String, String>();
-			env1.put(Context.INITIAL_CONTEXT_FACTORY,
-					"com.sun.jndi.ldap.LdapCtxFactory");
-			env1.put(Context.PROVIDER_URL, baseUrl);
-			env1.put(Context.SECURITY_AUTHENTICATION, "simple");
-			if (!ldapSecurityPrincipal.equals("") ) {
-				env1.put(Context.SECURITY_PRINCIPAL, ldapSecurityPrincipal);
-	 			env1.put(Context.SECURITY_CREDENTIALS, ldapSecurityCredentials);
-			}
-			DirContext dc = new InitialDirContext(env1);
-
-			SearchControls sc = new SearchControls();
-			sc.setSearchScope(SearchControls.SUBTREE_SCOPE);
+			// Pooled connections are always bound as the system principal, never
+			// with the credentials that may just have been rejected.
+			conn = borrow(LdapMetrics.Operation.DN_RESOLUTION);
+			DirContext dc = conn.getContext();
+
+			// Only the DN is needed, so ask for no attributes at all
+			SearchControls sc = newSearchControls(SearchType.LOOKUP, new String[0], true);
 			//Create the filter
-			String filter = idAttr + "=" + username;
+			String filter = idAttr + "=" + escapeFilterValue(username);
 			if(StringUtils.isNotBlank(filterPrefix) && StringUtils.isNotBlank(filterSuffix) ) {
-				filter = "(" + filterPrefix + idAttr + "=" + username + filterSuffix + ")";
+				filter = "(" + filterPrefix + idAttr + "=" + escapeFilterValue(username) + filterSuffix + ")";
 			}
 
 			log.debug(String.format("LDAP search, baseDn: %s, filter: %s", baseDn, filter));
@@ -289,36 +689,79 @@ public class LdapAuthenticationHandler {
 			if (ne.hasMore()) {
 				SearchResult sr = ne.next();
 				ne.close();
-				dc.close();
 				return sr.getNameInNamespace();
 			} else {
 				ne.close();
-				dc.close();
 			}
 		} catch (NamingException ne) {
+			error = ne;
+			markIfBroken(conn, ne);
 			log.warn("Failed LDAP lookup getDN", ne);
+		} finally {
+			finish(LdapMetrics.Operation.DN_RESOLUTION, conn, start, error);
 		}
 		return "";
 	}
 
 	/**
-	 * Performs a search of LDAP
+	 * Performs a search of LDAP, only returning the given attributes
 	 * @param username The username to be used in the search
 	 * @param dc The directory context to use for the search
+	 * @param returningAttrs The attributes to return, or null for all
+	 * @param firstOnly Whether only the first result will be used
 	 * @return An enumeration containing the search results
 	 * @throws NamingException
 	 */
-	private NamingEnumeration<SearchResult> performLdapSearch(String username, DirContext dc) throws NamingException {
-		SearchControls sc = new SearchControls();
-		sc.setSearchScope(SearchControls.SUBTREE_SCOPE);
+	private NamingEnumeration<SearchResult> performLdapSearch(String username, DirContext dc, String[] returningAttrs, boolean firstOnly) throws NamingException {
+		SearchControls sc = newSearchControls(SearchType.LOOKUP, returningAttrs, firstOnly);
 
-		String filter = "(" + filterPrefix + idAttr + "=" + username + filterSuffix + ")";
+		String filter = "(" + filterPrefix + idAttr + "=" + escapeFilterValue(username) + filterSuffix + ")";
 
 		NamingEnumeration<SearchResult> ne = dc.search(baseDn, filter, sc);
 		log.info(String.format("performing LDAP search using baseDn: %s, filter: %s", baseDn, filter));
 		return ne;
 	}
 
+	/**
+	 * Creates subtree search controls with the limits configured for the
+	 * type of search
+	 * @param type The type of search
+	 * @param returningAttrs The attributes to return, null for all or empty for none
+	 * @param firstOnly Whether only the first result will be used
+	 * @return the search controls
+	 */
+	private SearchControls newSearchControls(SearchType type, String[] returningAttrs, boolean firstOnly) {
+		SearchControls sc = new SearchControls();
+		sc.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		sc.setReturningAttributes(returningAttrs);
+		if (type == SearchType.QUERY) {
+			sc.setCountLimit(queryCountLimit);
+			sc.setTimeLimit(queryTimeLimit);
+		} else {
+			sc.setCountLimit(lookupCountLimit);
+			sc.setTimeLimit(lookupTimeLimit);
+		}
+		if (firstOnly) {
+			sc.setCountLimit(1);
+		}
+		return sc;
+	}
+
+	/**
+	 * Creates subtree search controls without size or time limits, for the
+	 * background crawls that must read every entry under their base. The
+	 * query limits are meant for free-form searches and would stop a crawl
+	 * part way.
+	 * @param returningAttrs The attributes to return, null for all or empty for none
+	 * @return the search controls
+	 */
+	private SearchControls newCrawlControls(String[] returningAttrs) {
+		SearchControls sc = new SearchControls();
+		sc.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		sc.setReturningAttributes(returningAttrs);
+		return sc;
+	}
+
 	/**
 	 * Get the value of an attribute from a search result
 	 * @param attrName The name of the attribute that we're interested in
@@ -328,12 +771,19 @@ public class LdapAuthenticationHandler {
 	 */
 	private String getAttrValue(String attrName, SearchResult sr) throws NamingException {
 		// Get all attributes
-		Attributes entry = sr.getAttributes();
+		return getAttrValue(attrName, sr.getAttributes());
+	}
 
-		// Get the attribute value and return
-		Attribute attrValues = entry.get(attrName);
-		String[] strArr = attrValues.toString().split(":");
-		return strArr[1].trim();
+	/**
+	 * Get the value of an attribute from an entry's attributes. Multiple
+	 * values are joined with ", ".
+	 * @param attrName The name of the attribute that we're interested in
+	 * @param entry The attributes of the entry
+	 * @return The attribute value, or an empty string if the entry does not have it
+	 * @throws NamingException
+	 */
+	private String getAttrValue(String attrName, Attributes entry) throws NamingException {
+		return LdapAttributeDecoder.joinedValues(entry.get(attrName));
 	}
 
 	/**
@@ -348,26 +798,339 @@ public class LdapAuthenticationHandler {
 	 */
 	public String getAttr(String username, String attrName) {
 		String val = "";
+		LdapConnectionPool.Connection conn = null;
+		long start = System.nanoTime();
+		NamingException error = null;
 		try {
-			DirContext dc = new InitialDirContext(env);
-			NamingEnumeration<SearchResult> ne = performLdapSearch(username, dc);
+			conn = borrow(LdapMetrics.Operation.ATTRIBUTE_SEARCH);
+			NamingEnumeration<SearchResult> ne = performLdapSearch(username,
+					conn.getContext(), new String[] { attrName }, true);
 
 			if (ne.hasMore()) {
 				val = getAttrValue(attrName, ne.next());
 			}
 
 			ne.close();
-			dc.close();
 		} catch (NamingException ne) {
+			error = ne;
+			markIfBroken(conn, ne);
 			log.warn("Failed LDAP lookup getAttr", ne);
 			log.warn("username:", username);
 			log.warn("attrName:", attrName);
+		} finally {
+			finish(LdapMetrics.Operation.ATTRIBUTE_SEARCH, conn, start, error);
 		}
 
 		log.trace(String.format("getAttr search result: %s", val));
 		return val;
 	}
 
+	/**
+	 * Tries to find the values of several attributes with a single search.
+	 * If the user's DN is already known their entry is read directly,
+	 * otherwise only the first search result is used.
+	 * 
+	 * @param username
+	 *            a username
+	 * @param attrNames
+	 *            the names of the attributes to find
+	 * @return a map of attribute name to value, in the order requested. An
+	 *         attribute that could not be found maps to an empty string.
+	 */
+	public Map<String, String> getAttrValues(String username, Collection<String> attrNames) {
+		if (!attrNames.isEmpty()) {
+			try {
+				Map<String, String> values = findAttrValues(username, attrNames);
+				if (values != null) {
+					return values;
+				}
+			} catch (NamingException ne) {
+				log.warn("Failed LDAP lookup getAttrValues" + username, ne);
+			}
+		}
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for (String attrName : attrNames) {
+			values.put(attrName, "");
+		}
+		return values;
+	}
+
+	/**
+	 * Finds the values of several attributes like
+	 * {@link #getAttrValues(String, Collection)}, but tells a user who does
+	 * not exist apart from a directory that could not be asked. Users in the
+	 * user snapshot are answered from memory when it holds every attribute
+	 * asked for.
+	 * 
+	 * @param username
+	 *            a username
+	 * @param attrNames
+	 *            the names of the attributes to find
+	 * @return a map of attribute name to value, in the order requested, with
+	 *         an empty string for any attribute the entry does not have, or
+	 *         <code>null</code> if there is no such user
+	 * @throws NamingException
+	 *             if the lookup failed
+	 */
+	public Map<String, String> findAttrValues(String username, Collection<String> attrNames) throws NamingException {
+		LdapUserIndex index = userIndexFor(username);
+		Map<String, String> indexed = index.getValues(username, attrNames);
+		if (indexed != null) {
+			return indexed;
+		}
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for (String attrName : attrNames) {
+			values.put(attrName, "");
+		}
+
+		String[] returningAttrs = values.keySet().toArray(new String[values.size()]);
+		LdapConnectionPool.Connection conn = null;
+		long start = System.nanoTime();
+		NamingException error = null;
+		try {
+			conn = borrow(LdapMetrics.Operation.ATTRIBUTE_SEARCH);
+			Attributes entry = null;
+			String dn = dnCache.get(username);
+			if (dn == null) {
+				dn = index.getDn(username);
+			}
+			if (dn != null) {
+				try {
+					entry = conn.getContext().getAttributes(dn, returningAttrs);
+				} catch (NameNotFoundException nnfe) {
+					dnCache.remove(username);
+				}
+			}
+			if (entry == null) {
+				NamingEnumeration<SearchResult> ne = performLdapSearch(username,
+						conn.getContext(), returningAttrs, true);
+				if (ne.hasMore()) {
+					entry = ne.next().getAttributes();
+				}
+				ne.close();
+			}
+			if (entry == null) {
+				return null;
+			}
+
+			for (String attrName : values.keySet()) {
+				if (entry.get(attrName) != null) {
+					values.put(attrName, getAttrValue(attrName, entry));
+				}
+			}
+		} catch (NamingException ne) {
+			error = ne;
+			markIfBroken(conn, ne);
+			throw ne;
+		} finally {
+			finish(LdapMetrics.Operation.ATTRIBUTE_SEARCH, conn, start, error);
+		}
+
+		log.trace(String.format("findAttrValues search result: %s", values));
+		return values;
+	}
+
+	/**
+	 * Reads the attributes of many users with as few searches as possible.
+	 * The usernames are split into chunks of the configured batch size, each
+	 * chunk is looked up with a single <code>(|(idAttr=a)(idAttr=b)...)</code>
+	 * search, and the chunks run in parallel on the worker threads. The DN of
+	 * every user found is cached for later binds. Users in the user snapshot
+	 * are answered from memory without a search.
+	 * 
+	 * @param usernames
+	 *            the usernames to look up
+	 * @param attrNames
+	 *            the names of the attributes to find
+	 * @return for each user found, keyed by the username as given, a map of
+	 *         attribute name to value with an empty string for any attribute
+	 *         the entry does not have. Users that were not found, or whose
+	 *         chunk failed, are absent.
+	 */
+	public Map<String, Map<String, String>> getUsers(Collection<String> usernames, Collection<String> attrNames) {
+		Map<String, Map<String, String>> result = new LinkedHashMap<String, Map<String, String>>();
+		final Set<String> attrs = new LinkedHashSet<String>(attrNames);
+		List<String> names = new ArrayList<String>();
+		for (String username : new LinkedHashSet<String>(usernames)) {
+			Map<String, String> indexed = userIndexFor(username).getValues(username, attrs);
+			if (indexed != null) {
+				result.put(username, indexed);
+			} else {
+				names.add(username);
+			}
+		}
+		if (names.isEmpty()) {
+			return result;
+		}
+		int size = batchSize;
+		List<Future<Map<String, Map<String, String>>>> pending = new ArrayList<Future<Map<String, Map<String, String>>>>();
+		List<String> lastChunk = null;
+		for (int i = 0; i < names.size(); i += size) {
+			final List<String> chunk = names.subList(i, Math.min(names.size(), i + size));
+			if (i + size >= names.size()) {
+				// The caller searches the last chunk itself
+				lastChunk = chunk;
+				break;
+			}
+			try {
+				pending.add(executor.submit(new Callable<Map<String, Map<String, String>>>() {
+					@Override
+					public Map<String, Map<String, String>> call() {
+						return lookupUserChunk(chunk, attrs);
+					}
+				}, 0));
+			} catch (RejectedExecutionException ree) {
+				result.putAll(lookupUserChunk(chunk, attrs));
+			}
+		}
+		result.putAll(lookupUserChunk(lastChunk, attrs));
+		for (Future<Map<String, Map<String, String>>> future : pending) {
+			try {
+				result.putAll(future.get());
+			} catch (ExecutionException ee) {
+				log.warn("Failed LDAP lookup getUsers", ee.getCause());
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Looks up one chunk of users with a single search
+	 * 
+	 * @param usernames
+	 *            the usernames to look up
+	 * @param attrNames
+	 *            the names of the attributes to find
+	 * @return attribute values of the users found, keyed by username
+	 */
+	private Map<String, Map<String, String>> lookupUserChunk(List<String> usernames, Set<String> attrNames) {
+		Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
+		// Results are matched back to usernames by their identifier
+		Map<String, String> byId = new HashMap<String, String>();
+		StringBuilder or = new StringBuilder("|");
+		for (String username : usernames) {
+			byId.put(username.toLowerCase(Locale.ENGLISH), username);
+			or.append('(').append(idAttr).append('=').append(escapeFilterValue(username)).append(')');
+		}
+		String filter = "(" + filterPrefix + or + filterSuffix + ")";
+		Set<String> returning = new LinkedHashSet<String>(attrNames);
+		returning.add(idAttr);
+
+		LdapConnectionPool.Connection conn = null;
+		long start = System.nanoTime();
+		NamingException error = null;
+		try {
+			conn = borrow(LdapMetrics.Operation.ATTRIBUTE_SEARCH);
+			SearchControls sc = newSearchControls(SearchType.LOOKUP,
+					returning.toArray(new String[returning.size()]), false);
+			// The filter itself bounds the number of entries
+			sc.setCountLimit(0);
+			log.debug(String.format("LDAP batch search, baseDn: %s, %d users", baseDn, usernames.size()));
+			NamingEnumeration<SearchResult> ne = conn.getContext().search(baseDn, filter, sc);
+			while (ne.hasMore()) {
+				SearchResult sr = ne.next();
+				Attributes entry = sr.getAttributes();
+				for (String id : LdapAttributeDecoder.values(entry.get(idAttr))) {
+					String username = byId.get(id.toLowerCase(Locale.ENGLISH));
+					if (username != null && !result.containsKey(username)) {
+						Map<String, String> values = new LinkedHashMap<String, String>();
+						for (String attrName : attrNames) {
+							values.put(attrName, getAttrValue(attrName, entry));
+						}
+						result.put(username, values);
+						dnCache.put(username, sr.getNameInNamespace());
+					}
+				}
+			}
+			ne.close();
+		} catch (NamingException ne) {
+			error = ne;
+			markIfBroken(conn, ne);
+			log.warn("Failed LDAP lookup getUsers", ne);
+		} finally {
+			finish(LdapMetrics.Operation.ATTRIBUTE_SEARCH, conn, start, error);
+		}
+		return result;
+	}
+
+	/**
+	 * Escapes a value for use in a search filter, as described in RFC 4515
+	 * 
+	 * @param value
+	 *            the raw value
+	 * @return the value with special characters escaped
+	 */
+	private static String escapeFilterValue(String value) {
+		StringBuilder escaped = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+				escaped.append("\\5c");
+				break;
+			case '*':
+				escaped.append("\\2a");
+				break;
+			case '(':
+				escaped.append("\\28");
+				break;
+			case ')':
+				escaped.append("\\29");
+				break;
+			case '\0':
+				escaped.append("\\00");
+				break;
+			default:
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * Looks up an attribute on a worker thread
+	 * 
+	 * @param username
+	 *            a username
+	 * @param attrName
+	 *            the name of the attribute to find
+	 * @param deadline
+	 *            time (ms) after which the lookup is cancelled, 0 for none
+	 * @return the future result of {@link #getAttr(String, String)}
+	 */
+	public Future<String> getAttrAsync(final String username, final String attrName, long deadline) {
+		return executor.submit(new Callable<String>() {
+			@Override
+			public String call() {
+				return getAttr(username, attrName);
+			}
+		}, deadline);
+	}
+
+	/**
+	 * Looks up several attributes on a worker thread
+	 * 
+	 * @param username
+	 *            a username
+	 * @param attrNames
+	 *            the names of the attributes to find
+	 * @param deadline
+	 *            time (ms) after which the lookup is cancelled, 0 for none
+	 * @return the future result of {@link #getAttrValues(String, Collection)}
+	 */
+	public Future<Map<String, String>> getAttrValuesAsync(final String username,
+			final Collection<String> attrNames, long deadline) {
+		return executor.submit(new Callable<Map<String, String>>() {
+			@Override
+			public Map<String, String> call() {
+				return getAttrValues(username, attrNames);
+			}
+		}, deadline);
+	}
+
 	/**
 	 * Tries to find the value(s) of the given attribute.
 	 * Note that this method uses all search results.
@@ -380,19 +1143,25 @@ public class LdapAuthenticationHandler {
 	 */
 	public List<String> getAllAttrs(String username, String attrName) {
 		List<String> resultList = new ArrayList<String>();
-
+		LdapConnectionPool.Connection conn = null;
+		long start = System.nanoTime();
+		NamingException error = null;
 		try {
-			DirContext dc = new InitialDirContext(env);
-			NamingEnumeration<SearchResult> ne = performLdapSearch(username, dc);
+			conn = borrow(LdapMetrics.Operation.ATTRIBUTE_SEARCH);
+			NamingEnumeration<SearchResult> ne = performLdapSearch(username,
+					conn.getContext(), new String[] { attrName }, false);
 
 			while (ne.hasMore()) {
 				resultList.add(getAttrValue(attrName, ne.next()));
 			}
 
 			ne.close();
-			dc.close();
 		} catch (NamingException ne) {
+			error = ne;
+			markIfBroken(conn, ne);
 			log.warn("Failed LDAP lookup getAllAttrs" + username, ne);
+		} finally {
+			finish(LdapMetrics.Operation.ATTRIBUTE_SEARCH, conn, start, error);
 		}
 
 			log.trace("getAllAttrs search result: " + resultList);
@@ -412,10 +1181,13 @@ public class LdapAuthenticationHandler {
 	 */
 	public List<Map<String,String>> getAttrs(String username, List<String> attrNames) {
 		List<Map<String,String>> resultList = new ArrayList<Map<String, String>>();
-
+		LdapConnectionPool.Connection conn = null;
+		long start = System.nanoTime();
+		NamingException error = null;
 		try {
-			DirContext dc = new InitialDirContext(env);
-			NamingEnumeration<SearchResult> ne = performLdapSearch(username, dc);
+			conn = borrow(LdapMetrics.Operation.ATTRIBUTE_SEARCH);
+			NamingEnumeration<SearchResult> ne = performLdapSearch(username,
+					conn.getContext(), attrNames.toArray(new String[attrNames.size()]), false);
 
 			while (ne.hasMore()) {
 				SearchResult res = ne.next();
@@ -427,9 +1199,12 @@ public class LdapAuthenticationHandler {
 			}
 
 			ne.close();
-			dc.close();
 		} catch (NamingException ne) {
+			error = ne;
+			markIfBroken(conn, ne);
 			log.warn("Failed LDAP lookup getAllAttrs" + username, ne);
+		} finally {
+			finish(LdapMetrics.Operation.ATTRIBUTE_SEARCH, conn, start, error);
 		}
 
 			log.trace("getAllAttrs search result: " + resultList);
@@ -442,7 +1217,8 @@ public class LdapAuthenticationHandler {
 
 	/**
 	 * Searches through the role attribute values and tries to match the given
-	 * string.
+	 * string, ignoring case. The values come from the role cache when
+	 * possible.
 	 * 
 	 * @param username
 	 *            a username
@@ -452,45 +1228,239 @@ public class LdapAuthenticationHandler {
 	 *         otherwise
 	 */
 	public boolean testIfInObjectClass(String username, String testSubj) {
-		try {
-			List<String> attrValues = getAllAttrs(username, ldapRoleAttr);
-			for (String attrValue : attrValues) {
-				String[] allVals = attrValue.split(",");
-				for (int i = 0; i < allVals.length; i++) {
-					if (testSubj.equals(allVals[i].trim())) {
-						return true;
-					}
-				}
-			}
-		} catch (Exception e) {
-			// Some problem exists, return false for now
+		if (testSubj == null) {
 			return false;
 		}
-		return false;
+		return getRoleValues(username).contains(normaliseRole(testSubj));
 	}
 
 	/**
 	 * Get the list of roles that the user is a member of. Maps LDAP roles to Fascinator roles.
+	 * The user's role attribute values are cached, so repeated calls are answered from memory.
 	 * @param username The username that identifies the user
 	 * @return A list of Fascinator role names
 	 */
 	public List<String> getRoles(String username) {
 		Set<String> roles = new LinkedHashSet<String>();
-		List<String> attrValues = getAllAttrs(username, ldapRoleAttr);
-		for (String attrValue : attrValues) {
-			String[] allVals = attrValue.split(",");
-			for (String objectClass : allVals) {
-				List<String> roleList = ldapRolesMap.get(objectClass.trim());
-				if (roleList != null) {
-					roles.addAll(roleList);
-				}
+		for (String value : getRoleValues(username)) {
+			List<String> roleList = roleIndex.get(value);
+			if (roleList != null) {
+				roles.addAll(roleList);
 			}
 		}
-
 		log.trace(String.format("getRoles found %d roles for username: %s", roles.size(), username));
 		return new ArrayList<String>(roles);
+	}
 
+	/**
+	 * Drops the cached roles of a user, for example when they log out, so
+	 * they are read from the directory again on next use.
+	 * @param username The username that identifies the user
+	 */
+	public void invalidateRoles(String username) {
+		roleCache.remove(username);
 	}
+
+	/**
+	 * Gets the normalised values of a user's role attribute, from the cache
+	 * or else from the directory. Concurrent lookups of the same user share
+	 * a single search.
+	 * @param username The username that identifies the user
+	 * @return the values, empty if none could be read
+	 */
+	private Set<String> getRoleValues(final String username) {
+		Set<String> cached = roleCache.get(username);
+		if (cached != null) {
+			return cached;
+		}
+		return coalesce(roleFlight, roleCache.normaliseKey(username), new Callable<Set<String>>() {
+			@Override
+			public Set<String> call() throws NamingException {
+				Set<String> values = lookupRoleValues(username);
+				roleCache.put(username, values);
+				return values;
+			}
+		}, Collections.<String>emptySet());
+	}
+
+	/**
+	 * Reads the values of a user's role attribute from every matching entry.
+	 * Each value is normalised, and values containing commas (such as group
+	 * DNs) also contribute each of their comma separated parts, as role
+	 * mappings have always matched those.
+	 * @param username The username that identifies the user
+	 * @return the normalised values
+	 * @throws NamingException if the search failed
+	 */
+	private Set<String> lookupRoleValues(String username) throws NamingException {
+		Set<String> values = new LinkedHashSet<String>();
+		LdapConnectionPool.Connection conn = null;
+		long start = System.nanoTime();
+		NamingException error = null;
+		try {
+			conn = borrow(LdapMetrics.Operation.ROLE_LOOKUP);
+			boolean withGroups = groupBaseDn != null;
+			Set<String> returning = new LinkedHashSet<String>();
+			returning.add(ldapRoleAttr);
+			if (withGroups && StringUtils.isNotBlank(memberOfAttr)) {
+				returning.add(memberOfAttr);
+			}
+			List<SearchResult> entries = new ArrayList<SearchResult>();
+			NamingEnumeration<SearchResult> ne = performLdapSearch(username,
+					conn.getContext(), returning.toArray(new String[returning.size()]), false);
+			while (ne.hasMore()) {
+				entries.add(ne.next());
+			}
+			ne.close();
+			for (SearchResult entry : entries) {
+				for (String value : LdapAttributeDecoder.values(entry.getAttributes().get(ldapRoleAttr))) {
+					values.add(normaliseRole(value));
+					if (value.indexOf(',') >= 0) {
+						for (String part : value.split(",")) {
+							values.add(normaliseRole(part));
+						}
+					}
+				}
+				if (withGroups) {
+					for (String group : findGroups(conn.getContext(), entry)) {
+						values.add(group);
+						values.add(normaliseRole(LdapGroupIndex.nameOf(group)));
+					}
+				}
+			}
+		} catch (NamingException ne) {
+			error = ne;
+			markIfBroken(conn, ne);
+			throw ne;
+		} finally {
+			finish(LdapMetrics.Operation.ROLE_LOOKUP, conn, start, error);
+		}
+		return Collections.unmodifiableSet(values);
+	}
+
+	/**
+	 * Finds every group a user belongs to, directly or through nested
+	 * groups. Once the group index has been built this needs no searches;
+	 * the user's memberOf values are expanded through the index as well, so
+	 * groups joined since the last rebuild are not missed. Until then,
+	 * groups listing the user as a member are searched for level by level.
+	 * @param dc The directory context to search on
+	 * @param user The user's entry, with its memberOf attribute if configured
+	 * @return normalised DNs of the groups
+	 * @throws NamingException if a search failed
+	 */
+	private Set<String> findGroups(DirContext dc, SearchResult user) throws NamingException {
+		String userDn = user.getNameInNamespace();
+		List<String> memberOf = StringUtils.isBlank(memberOfAttr) ? Collections.<String>emptyList()
+				: LdapAttributeDecoder.values(user.getAttributes().get(memberOfAttr));
+		LdapGroupIndex index = groupIndex;
+		if (index.isLoaded()) {
+			Set<String> groups = new LinkedHashSet<String>(index.getGroups(userDn));
+			groups.addAll(index.expand(memberOf));
+			return groups;
+		}
+
+		Set<String> groups = new LinkedHashSet<String>();
+		Set<String> level = new LinkedHashSet<String>();
+		level.add(userDn);
+		for (String group : memberOf) {
+			if (groups.add(LdapGroupIndex.normaliseDn(group))) {
+				level.add(group);
+			}
+		}
+		SearchControls sc = newSearchControls(SearchType.QUERY, new String[0], false);
+		for (int depth = 0; depth < MAX_GROUP_DEPTH && !level.isEmpty(); depth++) {
+			StringBuilder filter = new StringBuilder("(&").append(groupFilter).append("(|");
+			for (String dn : level) {
+				filter.append('(').append(memberAttr).append('=').append(escapeFilterValue(dn)).append(')');
+			}
+			filter.append("))");
+			level = new LinkedHashSet<String>();
+			NamingEnumeration<SearchResult> ne = dc.search(groupBaseDn, filter.toString(), sc);
+			while (ne.hasMore()) {
+				String group = LdapGroupIndex.normaliseDn(ne.next().getNameInNamespace());
+				if (groups.add(group)) {
+					level.add(group);
+				}
+			}
+			ne.close();
+		}
+		return groups;
+	}
+
+	/**
+	 * Rebuilds the index of nested group membership by paging through every
+	 * group under the group base DN. Role lookups use the new index at once.
+	 * The groups are read on a connection of their own, outside the pool and
+	 * the bulkhead, so the crawl takes nothing from lookups and queries.
+	 * @throws NamingException if the groups could not all be read, in which
+	 *             case the previous index is kept
+	 */
+	public void refreshGroupIndex() throws NamingException {
+		String base = groupBaseDn;
+		if (base == null) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		LdapGroupIndex.Builder builder = new LdapGroupIndex.Builder();
+		LdapPagedSearch groups = dedicatedSearch(base, groupFilter,
+				newCrawlControls(new String[] { memberAttr }), false);
+		try {
+			while (groups.hasNext()) {
+				Map<String, List<String>> group = groups.next();
+				builder.addGroup(groups.getDn(), valuesOf(group, memberAttr));
+			}
+		} finally {
+			groups.close();
+		}
+		if (groups.getError() != null) {
+			throw groups.getError();
+		}
+		groupIndex = builder.build();
+		log.info(String.format("Built %s in %d ms", groupIndex, System.currentTimeMillis() - start));
+	}
+
+	/**
+	 * @return the current index of nested group membership
+	 */
+	public LdapGroupIndex getGroupIndex() {
+		return groupIndex;
+	}
+
+	/**
+	 * Compiles the mapping of LDAP roles to Fascinator roles into an
+	 * immutable index keyed by normalised LDAP role
+	 * @param rolesMap the configured mapping, may be null
+	 * @return the index
+	 */
+	private static Map<String, List<String>> compileRoleIndex(Map<String, List<String>> rolesMap) {
+		if (rolesMap == null) {
+			return Collections.emptyMap();
+		}
+		Map<String, List<String>> index = new HashMap<String, List<String>>();
+		for (Map.Entry<String, List<String>> mapping : rolesMap.entrySet()) {
+			if (mapping.getKey() == null || mapping.getValue() == null) {
+				continue;
+			}
+			String key = normaliseRole(mapping.getKey());
+			Set<String> roles = new LinkedHashSet<String>();
+			if (index.containsKey(key)) {
+				roles.addAll(index.get(key));
+			}
+			roles.addAll(mapping.getValue());
+			index.put(key, Collections.unmodifiableList(new ArrayList<String>(roles)));
+		}
+		return Collections.unmodifiableMap(index);
+	}
+
+	/**
+	 * @param role an LDAP role value
+	 * @return the value trimmed and in lower case
+	 */
+	private static String normaliseRole(String role) {
+		return role.trim().toLowerCase(Locale.ENGLISH);
+	}
+
 	/**
 	 * Performs an LDAP search using the search string and the term(s). The search string should be of String.format().
 	 * 
@@ -502,82 +1472,988 @@ public class LdapAuthenticationHandler {
 	 * @author Shilo Banihit
 	 */
 	public List<Map<String, List<String> >> getAllAttrValues(String[] term, String searchString) {
-		List<Map<String,List<String> >> resultList = new ArrayList<Map<String, List<String>>>();
+		return getAllAttrValues(term, searchString, null);
+	}
 
+	/**
+	 * Performs an LDAP search using the search string and the term(s), only
+	 * returning the given attributes of each entry.
+	 * 
+	 * @param term - array of values to replace on search string
+	 * @param searchString - must be of String.format()
+	 * @param returningAttrs - the attributes to return, or null for all
+	 * @return a list of maps of the attribute. Each attribute in the map contains a list of vales.
+	 */
+	public List<Map<String, List<String> >> getAllAttrValues(String[] term, String searchString, String[] returningAttrs) {
+		List<Map<String,List<String> >> resultList = new ArrayList<Map<String, List<String>>>();
+		LdapPagedSearch search = null;
 		try {
-			DirContext dc = new InitialDirContext(env);
-			NamingEnumeration<SearchResult> ne = performLdapSearch(term, searchString, dc);
-
-			while (ne.hasMore()) {
-				SearchResult res = ne.next();
-				HashMap<String,List<String>> map = new HashMap<String,List<String>>();
-				resultList.add(getAllAttrValue(res, map));
+			search = iterateAllAttrValues(term, searchString, returningAttrs);
+			while (search.hasNext()) {
+				resultList.add(search.next());
 			}
-
-			ne.close();
-			dc.close();
 		} catch (NamingException ne) {
 			log.warn("Failed LDAP lookup getAllAttrs" + term, ne);
+		} finally {
+			if (search != null) {
+				search.close();
+			}
 		}
 
 		log.info("getAllAttrs search result: " + resultList);
 		return resultList;
 	}
+
 	/**
-	 * Retrieves the map of attributes for this search entry. The values are splitted at ":" and then trimmed for whitespace.
+	 * Performs an LDAP search using the search string and the term(s) like
+	 * {@link #getAllAttrValues(String[], String, String[])}, but reads the
+	 * results a page at a time as they are iterated. The search holds a bulk
+	 * permit and a connection of its own, outside the pool, until it has
+	 * been read to the end or closed.
 	 * 
-	 * @param sr
-	 * @param resultMap
-	 * @return a map of attributes for this search entry. Each attribute could possibly contain more than one value, hence the list. 
-	 * @throws NamingException
-	 * @author Shilo Banihit
+	 * @param term - array of values to replace on search string
+	 * @param searchString - must be of String.format()
+	 * @param returningAttrs - the attributes to return, or null for all
+	 * @return the results, to be closed once no more are needed
+	 * @throws NamingException if the search could not be started
 	 */
-	private Map<String, List< String>> getAllAttrValue(SearchResult sr, Map<String, List<String>> resultMap) throws NamingException {
-		// Get all attributes
-		Attributes entry = sr.getAttributes();
-		NamingEnumeration<String> ids = entry.getIDs();
-		
-		while(ids.hasMore()) {
-			String id = ids.next();
-			String value = entry.get(id).toString().split(":")[1].trim();
-			List<String> valList = resultMap.get(id);
-			if (valList == null) {
-				valList = new ArrayList<String>();
-				resultMap.put(id, valList);
+	public LdapPagedSearch iterateAllAttrValues(String[] term, String searchString, String[] returningAttrs) throws NamingException {
+		String filter = String.format(searchString, term);
+		log.info(String.format("performing LDAP search using baseDN: %s, filter: %s", baseDn, filter));
+		return dedicatedSearch(baseDn, filter, newSearchControls(SearchType.QUERY, returningAttrs, false), true);
+	}
+
+	/**
+	 * Searches for users whose identifier or common name contains the given
+	 * text, reading the results a page at a time and stopping once enough
+	 * have been found.
+	 * 
+	 * @param search
+	 *            the text to look for, empty to list every user
+	 * @param attrNames
+	 *            the names of the attributes to read for each user
+	 * @param maxResults
+	 *            maximum number of users returned, 0 for no limit
+	 * @return attribute values of the users found, keyed by username in the
+	 *         order the directory returned them
+	 */
+	public Map<String, Map<String, String>> searchUsers(String search, Collection<String> attrNames, int maxResults) {
+		Map<String, Map<String, String>> result = new LinkedHashMap<String, Map<String, String>>();
+		String text = search == null ? "" : search.trim();
+		String match = text.length() == 0 ? "*" : "*" + escapeFilterValue(text) + "*";
+		String filter = "(" + filterPrefix + "|(" + idAttr + "=" + match + ")(cn=" + match + ")" + filterSuffix + ")";
+		Set<String> returning = new LinkedHashSet<String>(attrNames);
+		returning.add(idAttr);
+
+		LdapPagedSearch users = null;
+		try {
+			users = pagedSearch(filter, newSearchControls(SearchType.QUERY,
+					returning.toArray(new String[returning.size()]), false));
+			while (users.hasNext() && (maxResults <= 0 || result.size() < maxResults)) {
+				Map<String, List<String>> entry = users.next();
+				List<String> ids = valuesOf(entry, idAttr);
+				if (ids.isEmpty()) {
+					continue;
+				}
+				Map<String, String> values = new LinkedHashMap<String, String>();
+				for (String attrName : attrNames) {
+					values.put(attrName, StringUtils.join(valuesOf(entry, attrName), ", "));
+				}
+				result.put(ids.get(0), values);
+			}
+		} catch (NamingException ne) {
+			log.warn("Failed LDAP search searchUsers" + search, ne);
+		} finally {
+			if (users != null) {
+				// Stops the search early once enough users were found
+				users.close();
 			}
-			valList.add(value);
 		}
-		
-		return resultMap;
+		return result;
 	}
+
 	/**
-	 * Performs an LDAP search using more than one term.
+	 * Finds an attribute's values in a search result map, whose keys have the
+	 * case the server returned
 	 * 
+	 * @param entry the search result
+	 * @param attrName the attribute name
+	 * @return the values, empty if there are none
+	 */
+	private List<String> valuesOf(Map<String, List<String>> entry, String attrName) {
+		for (Map.Entry<String, List<String>> attr : entry.entrySet()) {
+			if (attr.getKey().equalsIgnoreCase(attrName)) {
+				return attr.getValue();
+			}
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Starts a paged search on a connection of its own, outside the pool,
+	 * which is closed once the search completes. A search read slowly, or
+	 * crawling the whole directory, then never keeps a pooled connection
+	 * from lookups and logins.
 	 * 
-	 * @param term
-	 * @param searchString - must of String.format()
-	 * @param dc
-	 * @return an enumeration of search results
-	 * @throws NamingException
-	 * @author Shilo Banihit
+	 * @param base where to search
+	 * @param filter the search filter
+	 * @param sc the search controls
+	 * @param bulk whether the search must hold a bulk permit of the
+	 *            bulkhead while it runs
+	 * @return the results
+	 * @throws NamingException if the search is rejected or no connection
+	 *             could be opened
 	 */
-	private NamingEnumeration<SearchResult> performLdapSearch(String[] term, String searchString, DirContext dc) throws NamingException {
-		SearchControls sc = new SearchControls();
-		sc.setSearchScope(SearchControls.SUBTREE_SCOPE);
+	private LdapPagedSearch dedicatedSearch(String base, String filter, SearchControls sc, final boolean bulk) throws NamingException {
+		final long start = System.nanoTime();
+		final LdapConnectionPool.Connection conn;
+		try {
+			if (bulk) {
+				bulkhead.acquire(LdapBulkhead.Priority.BULK);
+			}
+			try {
+				circuitBreaker.check();
+				conn = connectionPool.openDedicated();
+			} catch (NamingException ne) {
+				if (bulk) {
+					bulkhead.release(LdapBulkhead.Priority.BULK);
+				}
+				throw ne;
+			} catch (RuntimeException re) {
+				if (bulk) {
+					bulkhead.release(LdapBulkhead.Priority.BULK);
+				}
+				throw re;
+			}
+		} catch (NamingException ne) {
+			finish(LdapMetrics.Operation.QUERY, null, start, ne);
+			throw ne;
+		}
+		return new LdapPagedSearch(conn.getContext(), base, filter, sc, pageSize,
+				new LdapPagedSearch.Completion() {
+					@Override
+					public void completed(NamingException error) {
+						if (error != null) {
+							markIfBroken(conn, error);
+						}
+						connectionPool.release(conn);
+						if (bulk) {
+							bulkhead.release(LdapBulkhead.Priority.BULK);
+						}
+						metrics.record(LdapMetrics.Operation.QUERY, conn.getServer(), start, error);
+						circuitBreaker.record(error);
+					}
+				});
+	}
 
-		String filter = String.format(searchString, term);
-		log.info(String.format("performing LDAP search using baseDN: %s, filter: %s", baseDn, filter));
-		NamingEnumeration<SearchResult> ne = dc.search(baseDn, filter, sc);
-		
-		return ne;
+	/**
+	 * Starts a paged search on a pooled connection, which is released once
+	 * the search completes
+	 * 
+	 * @param filter the search filter
+	 * @param sc the search controls
+	 * @return the results
+	 * @throws NamingException if no connection could be had
+	 */
+	private LdapPagedSearch pagedSearch(String filter, SearchControls sc) throws NamingException {
+		return pagedSearch(baseDn, filter, sc);
 	}
+
+	/**
+	 * Starts a paged search under the given base on a pooled connection,
+	 * which is released once the search completes
+	 * 
+	 * @param base where to search
+	 * @param filter the search filter
+	 * @param sc the search controls
+	 * @return the results
+	 * @throws NamingException if no connection could be had
+	 */
+	private LdapPagedSearch pagedSearch(String base, String filter, SearchControls sc) throws NamingException {
+		final long start = System.nanoTime();
+		final LdapConnectionPool.Connection conn;
+		try {
+			conn = borrow(LdapMetrics.Operation.QUERY);
+		} catch (NamingException ne) {
+			finish(LdapMetrics.Operation.QUERY, null, start, ne);
+			throw ne;
+		}
+		return new LdapPagedSearch(conn.getContext(), base, filter, sc, pageSize,
+				new LdapPagedSearch.Completion() {
+					@Override
+					public void completed(NamingException error) {
+						if (error != null) {
+							markIfBroken(conn, error);
+						}
+						finish(LdapMetrics.Operation.QUERY, conn, start, error);
+					}
+				});
+	}
+
 	/**
 	 * Reverts credentials to use system's rather than the currently logged in user.
 	 *
+	 * @deprecated Searches always run as the system principal on pooled
+	 *             connections and logins no longer change the shared
+	 *             environment, so there is nothing to revert.
 	 * @author Shilo Banihit
 	 */
+	@Deprecated
 	public void useSystemCred() {
-		env.put(Context.SECURITY_PRINCIPAL, ldapSecurityPrincipal);
-		env.put(Context.SECURITY_CREDENTIALS, ldapSecurityCredentials);
+		// Nothing to do
+	}
+
+	/**
+	 * Builds a new LDAP environment for the given principal. Every bind uses
+	 * its own environment, so the result may be modified freely.
+	 *
+	 * @param principal
+	 *            the principal to bind as, empty for an anonymous bind
+	 * @param credentials
+	 *            credentials for the principal
+	 * @return a new environment
+	 */
+	private Hashtable<String, String> createEnvironment(String principal, String credentials) {
+		Hashtable<String, String> newEnv = new Hashtable<String, String>();
+		newEnv.put(Context.INITIAL_CONTEXT_FACTORY, contextFactory);
+		newEnv.put(Context.PROVIDER_URL, baseUrl);
+		newEnv.put(Context.SECURITY_AUTHENTICATION, "simple");
+		if (connectTimeout > 0) {
+			newEnv.put("com.sun.jndi.ldap.connect.timeout", String.valueOf(connectTimeout));
+		}
+		if (readTimeout > 0) {
+			newEnv.put("com.sun.jndi.ldap.read.timeout", String.valueOf(readTimeout));
+		}
+		if (!principal.equals("") ) {
+			newEnv.put(Context.SECURITY_PRINCIPAL, principal);
+			newEnv.put(Context.SECURITY_CREDENTIALS, credentials);
+		}
+		return newEnv;
+	}
+
+	/**
+	 * Sets how long to wait for the directory. The pool of system principal
+	 * connections is replaced so that every connection uses the new limits.
+	 *
+	 * @param connect
+	 *            time (ms) to wait for a connection to the server, 0 for no
+	 *            limit
+	 * @param read
+	 *            time (ms) to wait for the server to answer a request, 0 for
+	 *            no limit
+	 */
+	public void setTimeouts(long connect, long read) {
+		connectTimeout = connect;
+		readTimeout = read;
+		env = createEnvironment(ldapSecurityPrincipal, ldapSecurityCredentials);
+		LdapConnectionPool old = connectionPool;
+		connectionPool = old.copy(env);
+		old.close();
+	}
+
+	/**
+	 * Sets the JNDI factory creating directory contexts, to use another
+	 * provider or an in-memory directory. The connection pool is replaced
+	 * as in {@link #setTimeouts(long, long)}.
+	 *
+	 * @param factory
+	 *            class name of an {@link javax.naming.spi.InitialContextFactory}
+	 */
+	void setContextFactory(String factory) {
+		contextFactory = factory;
+		env = createEnvironment(ldapSecurityPrincipal, ldapSecurityCredentials);
+		LdapConnectionPool old = connectionPool;
+		connectionPool = old.copy(env);
+		old.close();
+	}
+
+	/**
+	 * Replaces the circuit breaker guarding directory calls
+	 *
+	 * @param failureThreshold
+	 *            consecutive connection failures or timeouts that open the
+	 *            breaker, 0 to never open it
+	 * @param openDuration
+	 *            time (ms) calls fail fast before a probe is let through
+	 */
+	public void configureCircuitBreaker(int failureThreshold, long openDuration) {
+		circuitBreaker = new LdapCircuitBreaker(failureThreshold, openDuration);
+		metrics.addMBean("LdapCircuitBreaker", circuitBreaker);
+	}
+
+	/**
+	 * @return the bulkhead sharing directory capacity between logins,
+	 *         lookups and bulk queries, to change its limits
+	 */
+	public LdapBulkhead getBulkhead() {
+		return bulkhead;
+	}
+
+	/**
+	 * @return the circuit breaker guarding directory calls, to follow its
+	 *         state
+	 */
+	public LdapCircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * Replaces the servers used for binds and searches. The previous server
+	 * set is discarded, and pooled connections to servers no longer listed
+	 * are closed as they are next borrowed.
+	 *
+	 * @param urls
+	 *            server URLs, in order of preference until latencies are
+	 *            known; empty to keep using baseUrl
+	 * @param srvDomain
+	 *            DNS domain whose <code>_ldap._tcp</code> SRV records list
+	 *            further servers, or null
+	 * @param healthCheckInterval
+	 *            time (ms) between background probes of every server, 0 for
+	 *            none
+	 */
+	public void configureServers(List<String> urls, String srvDomain, long healthCheckInterval) {
+		List<String> serverUrls = urls.isEmpty() ? LdapServerSet.parseUrls(baseUrl) : urls;
+		LdapServerSet old = serverSet;
+		serverSet = new LdapServerSet(serverUrls, srvDomain);
+		serverSet.startHealthChecks(env, healthCheckInterval);
+		connectionPool.setServerSet(serverSet);
+		old.shutdown();
+	}
+
+	/**
+	 * @return the servers used for binds and searches, with their health
+	 *         and latency
+	 */
+	public LdapServerSet getServerSet() {
+		return serverSet;
+	}
+
+	/**
+	 * Replaces the pool of system principal connections used for searches.
+	 * The previous pool is closed, and the bulkhead lets interactive
+	 * operations hold whatever the new pool leaves after lookup and bulk
+	 * permits.
+	 *
+	 * @param minSize
+	 *            minimum number of connections kept open
+	 * @param maxSize
+	 *            maximum number of connections in use at once
+	 * @param maxIdleTime
+	 *            time (ms) an idle connection is kept before eviction
+	 * @param borrowTimeout
+	 *            time (ms) to wait for a free connection
+	 * @param validateOnBorrow
+	 *            whether idle connections are checked before use
+	 * @param validationInterval
+	 *            time (ms) a recently used connection is trusted without
+	 *            validation
+	 */
+	public void configureConnectionPool(int minSize, int maxSize,
+			long maxIdleTime, long borrowTimeout, boolean validateOnBorrow,
+			long validationInterval) {
+		LdapConnectionPool old = connectionPool;
+		connectionPool = new LdapConnectionPool(env, minSize, maxSize,
+				maxIdleTime, borrowTimeout, validateOnBorrow, validationInterval);
+		connectionPool.setMetrics(metrics);
+		connectionPool.setServerSet(serverSet);
+		bulkhead.setPoolSize(maxSize);
+		old.close();
+	}
+
+	/**
+	 * Sets the size and time limits sent to the server for a type of search.
+	 * Searches that only use their first result always ask for one entry.
+	 *
+	 * @param type
+	 *            the type of search
+	 * @param countLimit
+	 *            maximum number of entries returned, 0 for no limit
+	 * @param timeLimit
+	 *            time (ms) the server may spend, 0 for no limit
+	 */
+	public void setSearchLimits(SearchType type, long countLimit, int timeLimit) {
+		if (type == SearchType.QUERY) {
+			queryCountLimit = countLimit;
+			queryTimeLimit = timeLimit;
+		} else {
+			lookupCountLimit = countLimit;
+			lookupTimeLimit = timeLimit;
+		}
+	}
+
+	/**
+	 * Adds the groups a user belongs to, including through nested groups,
+	 * to the values their roles are mapped from. Both the DN and the name
+	 * (the value of the first RDN, usually the cn) of each group can be used
+	 * as keys of the role map. An index of group membership is rebuilt in
+	 * the background every refresh interval; until it is first built, and
+	 * when it is disabled, groups are found by searching for groups that
+	 * list the user or their groups as a member.
+	 *
+	 * @param groupBase
+	 *            where to search for groups, null for the base DN
+	 * @param filter
+	 *            filter matching group entries, null for the default
+	 * @param groupMemberAttr
+	 *            attribute of a group listing its members' DNs
+	 * @param userMemberOfAttr
+	 *            attribute of a user listing the DNs of their groups, blank
+	 *            if the directory has none
+	 * @param refreshInterval
+	 *            time (ms) between rebuilds of the group index, 0 to always
+	 *            search instead
+	 */
+	public synchronized void configureGroups(String groupBase, String filter,
+			String groupMemberAttr, String userMemberOfAttr, long refreshInterval) {
+		stopGroupRefresher();
+		groupFilter = StringUtils.isBlank(filter) ? LdapGroupIndex.DEFAULT_GROUP_FILTER : filter;
+		memberAttr = StringUtils.isBlank(groupMemberAttr) ? LdapGroupIndex.DEFAULT_MEMBER_ATTR : groupMemberAttr;
+		memberOfAttr = userMemberOfAttr;
+		groupIndex = LdapGroupIndex.EMPTY;
+		groupBaseDn = StringUtils.isBlank(groupBase) ? baseDn : groupBase;
+		if (refreshInterval <= 0) {
+			return;
+		}
+		groupRefresher = startRefresher("ldap-group-index", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refreshGroupIndex();
+				} catch (NamingException ne) {
+					log.warn("Failed to rebuild the LDAP group index", ne);
+				}
+			}
+		}, 0, refreshInterval);
+	}
+
+	private synchronized void stopGroupRefresher() {
+		if (groupRefresher != null) {
+			groupRefresher.shutdownNow();
+			groupRefresher = null;
+		}
+	}
+
+	/**
+	 * Keeps a snapshot of the users under the base DN in memory, so that
+	 * user lookups and DN resolution need no search. The snapshot is read a
+	 * page at a time straight away and again every refresh interval; users
+	 * not in it, such as those created since, are still looked up in the
+	 * directory.
+	 *
+	 * @param attrNames
+	 *            the attributes to hold for every user, lookups of any other
+	 *            attribute go to the directory
+	 * @param refreshInterval
+	 *            time (ms) between rebuilds of the snapshot, 0 to disable it
+	 */
+	public void configureUserIndex(Collection<String> attrNames, long refreshInterval) {
+		configureUserIndex(attrNames, refreshInterval, null);
+	}
+
+	/**
+	 * Keeps a snapshot of the users under the base DN in memory like
+	 * {@link #configureUserIndex(Collection, long)}, and saves it to a file
+	 * after every rebuild. A saved snapshot holding the attributes needed is
+	 * mapped into memory straight away, so that lookups are answered from it
+	 * during startup; the directory is read again once the snapshot is a
+	 * refresh interval old.
+	 *
+	 * @param attrNames
+	 *            the attributes to hold for every user, lookups of any other
+	 *            attribute go to the directory
+	 * @param refreshInterval
+	 *            time (ms) between rebuilds of the snapshot, 0 to disable it
+	 * @param snapshotFile
+	 *            where the snapshot is saved, null to keep it in memory only
+	 */
+	public synchronized void configureUserIndex(Collection<String> attrNames, long refreshInterval, File snapshotFile) {
+		stopUserRefresher();
+		userIndex = LdapUserIndex.EMPTY;
+		userIndexAttrs = new ArrayList<String>(new LinkedHashSet<String>(attrNames));
+		userIndexFile = snapshotFile;
+		if (refreshInterval <= 0) {
+			return;
+		}
+		long initialDelay = 0;
+		if (snapshotFile != null && snapshotFile.isFile()) {
+			try {
+				LdapUserIndex saved = LdapSnapshotFile.load(snapshotFile);
+				if (saved.covers(userIndexAttrs)) {
+					userIndex = saved;
+					long age = System.currentTimeMillis() - saved.getBuiltAt();
+					initialDelay = Math.max(0, Math.min(refreshInterval, refreshInterval - age));
+					log.info(String.format("Loaded %s from %s", saved, snapshotFile));
+				} else {
+					log.info("Ignoring LDAP user snapshot with other attributes: " + snapshotFile);
+				}
+			} catch (IOException ioe) {
+				log.warn("Failed to load LDAP user snapshot " + snapshotFile, ioe);
+			}
+		}
+		userRefresher = startRefresher("ldap-user-index", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refreshUserIndex();
+				} catch (NamingException ne) {
+					log.warn("Failed to rebuild the LDAP user index", ne);
+				}
+			}
+		}, initialDelay, refreshInterval);
+	}
+
+	private synchronized void stopUserRefresher() {
+		if (userRefresher != null) {
+			userRefresher.shutdownNow();
+			userRefresher = null;
+		}
+	}
+
+	/**
+	 * Rebuilds the snapshot of users by paging through every user under the
+	 * base DN. Lookups use the new snapshot at once. Like the group index,
+	 * the users are read on a connection of their own, outside the pool and
+	 * the bulkhead.
+	 * @throws NamingException if the users could not all be read, in which
+	 *             case the previous snapshot is kept
+	 */
+	public void refreshUserIndex() throws NamingException {
+		List<String> attrNames = userIndexAttrs;
+		long start = System.currentTimeMillis();
+		Set<String> returning = new LinkedHashSet<String>(attrNames);
+		returning.add(idAttr);
+		String filter = "(" + filterPrefix + idAttr + "=*" + filterSuffix + ")";
+		LdapUserIndex.Builder builder = new LdapUserIndex.Builder(attrNames);
+		LdapPagedSearch users = dedicatedSearch(baseDn, filter,
+				newCrawlControls(returning.toArray(new String[returning.size()])), false);
+		try {
+			while (users.hasNext()) {
+				Map<String, List<String>> entry = users.next();
+				List<String> ids = valuesOf(entry, idAttr);
+				if (ids.isEmpty()) {
+					continue;
+				}
+				Map<String, String> values = new HashMap<String, String>();
+				for (String attrName : attrNames) {
+					values.put(attrName, StringUtils.join(valuesOf(entry, attrName), ", "));
+				}
+				builder.add(ids.get(0), users.getDn(), values);
+			}
+		} finally {
+			users.close();
+		}
+		if (users.getError() != null) {
+			throw users.getError();
+		}
+		LdapUserIndex built = builder.build();
+		userIndex = built;
+		// Users changed since the rebuild started must still bypass it
+		for (Iterator<Long> changedAt = changedUsers.values().iterator(); changedAt.hasNext();) {
+			if (changedAt.next() < start) {
+				changedAt.remove();
+			}
+		}
+		log.info(String.format("Built %s in %d ms", built, System.currentTimeMillis() - start));
+		File snapshotFile = userIndexFile;
+		if (snapshotFile != null) {
+			try {
+				LdapSnapshotFile.write(snapshotFile, built);
+			} catch (IOException ioe) {
+				log.warn("Failed to save LDAP user snapshot " + snapshotFile, ioe);
+			}
+		}
+	}
+
+	/**
+	 * @param username a username
+	 * @return the user snapshot, or an empty one if the user has changed
+	 *         since it was built
+	 */
+	private LdapUserIndex userIndexFor(String username) {
+		if (!changedUsers.isEmpty() && changedUsers.containsKey(username.toLowerCase(Locale.ENGLISH))) {
+			return LdapUserIndex.EMPTY;
+		}
+		return userIndex;
+	}
+
+	/**
+	 * Keeps cached DNs, roles, the user snapshot and the group index in step
+	 * with the directory by watching for changed entries under the base DN
+	 * and the group base DN. A changed user's DN and roles are dropped and
+	 * the snapshot is bypassed for them until its next rebuild; a changed
+	 * group drops every user's roles and rebuilds the group index shortly
+	 * after. Should be configured after the groups.
+	 *
+	 * @param mode
+	 *            how changes are found
+	 * @param pollInterval
+	 *            time (ms) between polls, when polling
+	 * @param listener
+	 *            told about each changed user, may be null
+	 */
+	public synchronized void configureChangeTracking(LdapChangeTracker.Mode mode,
+			long pollInterval, final UserChangeListener listener) {
+		stopChangeTracking();
+		List<String> bases = new ArrayList<String>();
+		bases.add(baseDn);
+		Set<String> returning = new LinkedHashSet<String>();
+		returning.add(idAttr);
+		String groupBase = groupBaseDn;
+		if (groupBase != null) {
+			returning.add(memberAttr);
+			String base = LdapGroupIndex.normaliseDn(baseDn);
+			String normalisedGroupBase = LdapGroupIndex.normaliseDn(groupBase);
+			if (!normalisedGroupBase.equals(base) && !normalisedGroupBase.endsWith("," + base)) {
+				bases.add(groupBase);
+			}
+		}
+		changeTracker = new LdapChangeTracker(env, bases,
+				returning.toArray(new String[returning.size()]), mode, pollInterval,
+				new LdapChangeTracker.Listener() {
+					@Override
+					public void entryChanged(String dn, Attributes attrs) {
+						onEntryChanged(dn, attrs, listener);
+					}
+				});
+		changeTracker.start();
+	}
+
+	private synchronized void stopChangeTracking() {
+		if (changeTracker != null) {
+			changeTracker.shutdown();
+			changeTracker = null;
+		}
+	}
+
+	/**
+	 * @return the change tracker, or null if changes are not tracked
+	 */
+	public LdapChangeTracker getChangeTracker() {
+		return changeTracker;
+	}
+
+	/**
+	 * Drops everything cached from a changed entry
+	 * @param dn the entry's DN
+	 * @param attrs the entry's identifier and member attributes
+	 * @param listener told if the entry is a user's, may be null
+	 */
+	void onEntryChanged(String dn, Attributes attrs, UserChangeListener listener) {
+		String username = "";
+		try {
+			username = LdapAttributeDecoder.firstValue(attrs.get(idAttr));
+		} catch (NamingException ne) {
+			log.debug("Cannot read the identifier of changed entry " + dn, ne);
+		}
+		// Groups and other entries without an identifier are not users
+		if (!username.isEmpty()) {
+			dnCache.remove(username);
+			roleCache.remove(username);
+			if (userIndex.isLoaded()) {
+				changedUsers.put(username.toLowerCase(Locale.ENGLISH), System.currentTimeMillis());
+			}
+			if (listener != null) {
+				listener.userChanged(username);
+			}
+		}
+		if (groupBaseDn != null && (attrs.get(memberAttr) != null || groupIndex.isGroup(dn))) {
+			roleCache.clear();
+			requestGroupRebuild();
+		}
+	}
+
+	/**
+	 * Rebuilds the group index shortly, so that a burst of group changes
+	 * costs a single rebuild
+	 */
+	private synchronized void requestGroupRebuild() {
+		if (groupRefresher == null || !groupRebuildPending.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			groupRefresher.schedule(new Runnable() {
+				@Override
+				public void run() {
+					groupRebuildPending.set(false);
+					try {
+						refreshGroupIndex();
+					} catch (NamingException ne) {
+						log.warn("Failed to rebuild the LDAP group index", ne);
+					}
+				}
+			}, GROUP_REBUILD_DELAY, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ree) {
+			groupRebuildPending.set(false);
+		}
+	}
+
+	/**
+	 * @return the current snapshot of users
+	 */
+	public LdapUserIndex getUserIndex() {
+		return userIndex;
+	}
+
+	/**
+	 * Runs a task repeatedly on a daemon thread of its own
+	 * @param threadName name of the thread
+	 * @param task the task
+	 * @param initialDelay time (ms) before the first run
+	 * @param interval time (ms) from the end of one run to the start of the next
+	 * @return the scheduler, to be shut down when the task is no longer needed
+	 */
+	private ScheduledExecutorService startRefresher(final String threadName, final Runnable task, long initialDelay, long interval) {
+		ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, threadName);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} catch (RuntimeException re) {
+					log.warn("Error in " + threadName, re);
+				}
+			}
+		}, initialDelay, interval, TimeUnit.MILLISECONDS);
+		return refresher;
+	}
+
+	/**
+	 * Replaces the cache of users' roles. The previous cache is discarded.
+	 *
+	 * @param maxEntries
+	 *            maximum number of users whose roles are cached
+	 * @param ttl
+	 *            time (ms) after which a user's roles are read again, 0 for
+	 *            never
+	 */
+	public void configureRoleCache(int maxEntries, long ttl) {
+		roleCache = new LdapCache<Set<String>>(maxEntries, ttl, 0, false);
+	}
+
+	/**
+	 * Sets how many users each search of {@link #getUsers(Collection, Collection)}
+	 * looks up.
+	 *
+	 * @param size
+	 *            number of usernames per search, at least 1
+	 */
+	public void setBatchSize(int size) {
+		batchSize = Math.max(1, size);
+	}
+
+	/**
+	 * Sets how many entries each page of a paged search asks for.
+	 *
+	 * @param size
+	 *            number of entries per page, at least 1
+	 */
+	public void setPageSize(int size) {
+		pageSize = Math.max(1, size);
+	}
+
+	/**
+	 * Replaces the cache of resolved user DNs. The previous cache is
+	 * discarded.
+	 *
+	 * @param maxEntries
+	 *            maximum number of DNs cached
+	 * @param ttl
+	 *            time (ms) after which a DN is resolved again, 0 for never
+	 */
+	public void configureDnCache(int maxEntries, long ttl) {
+		dnCache = new LdapCache<String>(maxEntries, ttl, 0, false);
+	}
+
+	/**
+	 * Sets how logins with no cached DN choose between binding the template
+	 * DN and searching for the DN first.
+	 *
+	 * @param mode
+	 *            the bind order, or AUTO to pick the cheaper one from
+	 *            observed logins
+	 */
+	public void setBindStrategy(LdapBindStrategy.Mode mode) {
+		bindStrategy = new LdapBindStrategy(mode);
+	}
+
+	/**
+	 * @return the bind strategy, for its current mode and counters
+	 */
+	public LdapBindStrategy getBindStrategy() {
+		return bindStrategy;
+	}
+
+	/**
+	 * @return the cache of resolved user DNs, for statistics
+	 */
+	public LdapCache<String> getDnCache() {
+		return dnCache;
+	}
+
+	/**
+	 * @return the pool of system principal connections, for statistics
+	 */
+	public LdapConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	/**
+	 * Replaces the executor running asynchronous lookups. The previous
+	 * executor is shut down.
+	 *
+	 * @param newExecutor
+	 *            the executor to use
+	 */
+	public void setExecutor(LdapExecutor newExecutor) {
+		LdapExecutor old = executor;
+		executor = newExecutor;
+		old.shutdown();
+	}
+
+	/**
+	 * @return the executor running asynchronous lookups
+	 */
+	public LdapExecutor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @return timings of directory operations
+	 */
+	public LdapMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Releases all pooled connections and worker threads, and withdraws any
+	 * statistics published over JMX.
+	 */
+	public void shutdown() {
+		stopChangeTracking();
+		stopGroupRefresher();
+		stopUserRefresher();
+		executor.shutdown();
+		connectionPool.close();
+		serverSet.shutdown();
+		metrics.unregisterMBeans();
+	}
+
+	/**
+	 * Flags a pooled connection as unusable, and its server as unavailable,
+	 * if the error indicates the connection itself has failed.
+	 *
+	 * @param conn the connection in use, may be null
+	 * @param ne the error raised
+	 */
+	private void markIfBroken(LdapConnectionPool.Connection conn, NamingException ne) {
+		if (conn != null && LdapServerSet.isUnreachable(ne)) {
+			conn.markBroken();
+			serverSet.recordFailure(conn.getServer(), ne);
+		}
+	}
+
+	/**
+	 * Runs a lookup, or waits for the same lookup already in flight on
+	 * another thread
+	 *
+	 * @param flight the lookups in flight
+	 * @param key what is being looked up, normalised as the cache of its
+	 *            results compares keys
+	 * @param loader the lookup
+	 * @param fallback the result if the wait is interrupted
+	 * @return the result of the lookup
+	 */
+	private <V> V coalesce(LdapSingleFlight<String, V> flight, String key, Callable<V> loader, V fallback) {
+		try {
+			return flight.execute(key, loader);
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			log.warn("Failed LDAP lookup for " + key, cause);
+			return fallback;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return fallback;
+		}
+	}
+
+	/**
+	 * Borrows a pooled connection once the operation's class of the bulkhead
+	 * has a permit free and unless the circuit breaker is open. Every call
+	 * must be matched by
+	 * {@link #finish(LdapMetrics.Operation, LdapConnectionPool.Connection, long, NamingException)}.
+	 *
+	 * @param operation the kind of operation the connection is for
+	 * @return a connection bound as the system principal
+	 * @throws NamingException
+	 *             if the operation is rejected or no connection could be had
+	 */
+	private LdapConnectionPool.Connection borrow(LdapMetrics.Operation operation) throws NamingException {
+		LdapBulkhead.Priority priority = priorityOf(operation);
+		bulkhead.acquirePooled(priority);
+		try {
+			circuitBreaker.check();
+			return connectionPool.borrow();
+		} catch (NamingException ne) {
+			bulkhead.releasePooled(priority);
+			throw ne;
+		} catch (RuntimeException re) {
+			bulkhead.releasePooled(priority);
+			throw re;
+		}
+	}
+
+	/**
+	 * @param operation a kind of pooled operation
+	 * @return the bulkhead class it runs in
+	 */
+	private LdapBulkhead.Priority priorityOf(LdapMetrics.Operation operation) {
+		switch (operation) {
+		case DN_RESOLUTION:
+			return LdapBulkhead.Priority.INTERACTIVE;
+		case QUERY:
+			return LdapBulkhead.Priority.BULK;
+		default:
+			return LdapBulkhead.Priority.LOOKUP;
+		}
+	}
+
+	/**
+	 * Releases a pooled connection and records the outcome of the operation
+	 * run on it
+	 *
+	 * @param operation the kind of operation
+	 * @param conn the connection in use, may be null
+	 * @param start {@link System#nanoTime()} when the operation started
+	 * @param error the error raised, or null if it succeeded
+	 */
+	private void finish(LdapMetrics.Operation operation, LdapConnectionPool.Connection conn, long start, NamingException error) {
+		if (conn != null) {
+			connectionPool.release(conn);
+			bulkhead.releasePooled(priorityOf(operation));
+		}
+		metrics.record(operation, serverOf(conn), start, error);
+		circuitBreaker.record(error);
+	}
+
+	/**
+	 * @param conn the connection in use, may be null
+	 * @return the server an operation ran against, for metrics
+	 */
+	private String serverOf(LdapConnectionPool.Connection conn) {
+		return conn != null ? conn.getServer() : baseUrl;
 	}
 }
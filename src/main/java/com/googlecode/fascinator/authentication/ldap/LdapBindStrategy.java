@@ -0,0 +1,214 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides whether a login whose DN is not yet known should first bind
+ * against the template DN (<code>idAttr=username,baseDn</code>) or first
+ * search for the user's DN.
+ *
+ * <p>
+ * Binding the template first costs one bind when the user's entry sits
+ * directly under the base DN, but a failed bind, a search and a second bind
+ * otherwise. Searching first always costs a search and a bind. Template
+ * first is therefore cheaper while more than half of users live at their
+ * template DN. In {@link Mode#AUTO} mode the strategy keeps a moving average
+ * of how often the resolved DN matches the template DN and switches order
+ * accordingly.
+ * </p>
+ */
+public class LdapBindStrategy {
+
+	/** Logging */
+	private Logger log = LoggerFactory.getLogger(LdapBindStrategy.class);
+
+	/**
+	 * Bind orders
+	 */
+	public enum Mode {
+		/** Pick the cheaper order from observed logins */
+		AUTO,
+		/** Always bind the template DN first */
+		TEMPLATE_FIRST,
+		/** Always search for the DN first */
+		SEARCH_FIRST;
+
+		/**
+		 * Reads a mode from configuration
+		 *
+		 * @param value
+		 *            "auto", "template" or "search", case-insensitive
+		 * @return the mode, AUTO if the value is empty or unknown
+		 */
+		public static Mode parse(String value) {
+			if ("template".equalsIgnoreCase(value)) {
+				return TEMPLATE_FIRST;
+			}
+			if ("search".equalsIgnoreCase(value)) {
+				return SEARCH_FIRST;
+			}
+			return AUTO;
+		}
+	}
+
+	/** Weight of the newest observation in the moving average */
+	private static final double ALPHA = 0.05;
+
+	/** Match rate below which AUTO switches to searching first */
+	private static final double SWITCH_TO_SEARCH = 0.45;
+
+	/** Match rate above which AUTO switches back to the template first */
+	private static final double SWITCH_TO_TEMPLATE = 0.55;
+
+	/** Configured mode */
+	private final Mode mode;
+
+	/** Moving average of logins whose DN matched the template DN */
+	private double templateMatchRate = 1.0;
+
+	/** Whether AUTO currently binds the template first */
+	private volatile boolean templateFirst = true;
+
+	private final AtomicLong templateMatchCount = new AtomicLong();
+	private final AtomicLong templateMismatchCount = new AtomicLong();
+	private final AtomicLong templateFirstCount = new AtomicLong();
+	private final AtomicLong searchFirstCount = new AtomicLong();
+
+	/**
+	 * Creates a strategy
+	 *
+	 * @param mode
+	 *            the configured mode
+	 */
+	public LdapBindStrategy(Mode mode) {
+		this.mode = mode;
+		this.templateFirst = mode != Mode.SEARCH_FIRST;
+	}
+
+	/**
+	 * Decides the order for a login and counts the decision
+	 *
+	 * @return <code>true</code> to bind the template DN first,
+	 *         <code>false</code> to search for the DN first
+	 */
+	public boolean useTemplateFirst() {
+		boolean result = templateFirst;
+		if (result) {
+			templateFirstCount.incrementAndGet();
+		} else {
+			searchFirstCount.incrementAndGet();
+		}
+		return result;
+	}
+
+	/**
+	 * Records whether a user's actual DN turned out to be the template DN
+	 *
+	 * @param matched
+	 *            <code>true</code> if it was the template DN
+	 */
+	public void recordTemplateMatch(boolean matched) {
+		if (matched) {
+			templateMatchCount.incrementAndGet();
+		} else {
+			templateMismatchCount.incrementAndGet();
+		}
+		if (mode != Mode.AUTO) {
+			return;
+		}
+		synchronized (this) {
+			templateMatchRate = templateMatchRate * (1 - ALPHA)
+					+ (matched ? ALPHA : 0);
+			if (templateFirst && templateMatchRate < SWITCH_TO_SEARCH) {
+				templateFirst = false;
+				log.info(String.format(
+						"LDAP bind strategy now searching for DNs first (template match rate %.2f)",
+						templateMatchRate));
+			} else if (!templateFirst && templateMatchRate > SWITCH_TO_TEMPLATE) {
+				templateFirst = true;
+				log.info(String.format(
+						"LDAP bind strategy now binding template DNs first (template match rate %.2f)",
+						templateMatchRate));
+			}
+		}
+	}
+
+	/**
+	 * @return the configured mode
+	 */
+	public Mode getConfiguredMode() {
+		return mode;
+	}
+
+	/**
+	 * @return the order currently in use, TEMPLATE_FIRST or SEARCH_FIRST
+	 */
+	public Mode getCurrentMode() {
+		return templateFirst ? Mode.TEMPLATE_FIRST : Mode.SEARCH_FIRST;
+	}
+
+	/**
+	 * @return moving average of logins whose DN matched the template DN
+	 */
+	public synchronized double getTemplateMatchRate() {
+		return templateMatchRate;
+	}
+
+	/**
+	 * @return number of logins whose DN was the template DN
+	 */
+	public long getTemplateMatchCount() {
+		return templateMatchCount.get();
+	}
+
+	/**
+	 * @return number of logins whose DN was not the template DN
+	 */
+	public long getTemplateMismatchCount() {
+		return templateMismatchCount.get();
+	}
+
+	/**
+	 * @return number of logins that bound the template DN first
+	 */
+	public long getTemplateFirstCount() {
+		return templateFirstCount.get();
+	}
+
+	/**
+	 * @return number of logins that searched for the DN first
+	 */
+	public long getSearchFirstCount() {
+		return searchFirstCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"LdapBindStrategy[mode=%s, current=%s, matchRate=%.2f, matches=%d, mismatches=%d, templateFirst=%d, searchFirst=%d]",
+				mode, getCurrentMode(), getTemplateMatchRate(),
+				getTemplateMatchCount(), getTemplateMismatchCount(),
+				getTemplateFirstCount(), getSearchFirstCount());
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.ServiceUnavailableException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits how many directory operations of each priority class run at once,
+ * so that a burst of one kind of work cannot take all the directory
+ * capacity. Each class has its own permits and its own time to wait for
+ * one; operations that cannot get a permit in time are rejected with a
+ * {@link RejectedException} and counted.
+ *
+ * <p>
+ * Interactive operations that hold a pooled connection, such as the DN
+ * searches logins need, are further limited to the connections the lookup
+ * and bulk classes leave free in the pool. Binds do not use the pool and
+ * only need an interactive permit. So while lookup and bulk permits
+ * together stay below the pool size, logins never wait for a connection
+ * held by other work.
+ * </p>
+ */
+public class LdapBulkhead implements LdapBulkheadMXBean {
+
+	private Logger log = LoggerFactory.getLogger(LdapBulkhead.class);
+
+	/**
+	 * Priority classes of directory work
+	 */
+	public enum Priority {
+		/** User binds and the DN resolution they need */
+		INTERACTIVE(20, 5000),
+		/** Attribute and role lookups for a single user */
+		LOOKUP(6, 2000),
+		/** Free-form queries that may return many entries */
+		BULK(2, 1000);
+
+		private final int defaultPermits;
+		private final int defaultQueueTimeout;
+
+		private Priority(int defaultPermits, int defaultQueueTimeout) {
+			this.defaultPermits = defaultPermits;
+			this.defaultQueueTimeout = defaultQueueTimeout;
+		}
+
+		/**
+		 * @return default number of operations running at once
+		 */
+		public int getDefaultPermits() {
+			return defaultPermits;
+		}
+
+		/**
+		 * @return default time (ms) to wait for a permit
+		 */
+		public int getDefaultQueueTimeout() {
+			return defaultQueueTimeout;
+		}
+	}
+
+	/**
+	 * Raised when no permit becomes free in time
+	 */
+	public static class RejectedException extends ServiceUnavailableException {
+		private static final long serialVersionUID = 1L;
+
+		private RejectedException(String explanation) {
+			super(explanation);
+		}
+	}
+
+	/**
+	 * A semaphore whose number of permits can be lowered
+	 */
+	private static class ResizableSemaphore extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		private ResizableSemaphore(int permits) {
+			super(permits, true);
+		}
+
+		private void reduce(int reduction) {
+			reducePermits(reduction);
+		}
+	}
+
+	/**
+	 * The permits and counters of one class
+	 */
+	private static class Compartment {
+		private final ResizableSemaphore permits;
+		private int size;
+		private volatile long queueTimeout;
+		private final AtomicLong acquired = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+
+		private Compartment(int size, long queueTimeout) {
+			this.permits = new ResizableSemaphore(size);
+			this.size = size;
+			this.queueTimeout = queueTimeout;
+		}
+	}
+
+	private final Map<Priority, Compartment> compartments = new EnumMap<Priority, Compartment>(Priority.class);
+
+	/** Name of the pooled interactive compartment in the JMX statistics */
+	private static final String POOLED_INTERACTIVE = "INTERACTIVE_POOLED";
+
+	/** Pooled connections interactive operations may hold at once */
+	private final Compartment pooledInteractive;
+
+	/** Maximum size of the connection pool shared by the classes */
+	private int poolSize = LdapConnectionPool.DEFAULT_MAX_SIZE;
+
+	/**
+	 * Creates a bulkhead with the default limits of each class
+	 */
+	public LdapBulkhead() {
+		for (Priority priority : Priority.values()) {
+			compartments.put(priority, new Compartment(priority.getDefaultPermits(),
+					priority.getDefaultQueueTimeout()));
+		}
+		pooledInteractive = new Compartment(poolShare(),
+				Priority.INTERACTIVE.getDefaultQueueTimeout());
+	}
+
+	/**
+	 * Changes the limits of a class. Operations already running keep their
+	 * permits; lowering the limit takes effect as they finish.
+	 *
+	 * @param priority
+	 *            the class
+	 * @param permits
+	 *            number of operations running at once, at least 1
+	 * @param queueTimeout
+	 *            time (ms) to wait for a permit, 0 to reject at once
+	 */
+	public synchronized void configure(Priority priority, int permits, long queueTimeout) {
+		resize(compartments.get(priority), Math.max(1, permits), queueTimeout);
+		fitPool();
+	}
+
+	/**
+	 * Sets the size of the connection pool the classes share, which bounds
+	 * how many interactive operations may hold a pooled connection
+	 *
+	 * @param size
+	 *            maximum size of the connection pool
+	 */
+	public synchronized void setPoolSize(int size) {
+		poolSize = size;
+		if (compartments.get(Priority.LOOKUP).size + compartments.get(Priority.BULK).size >= size) {
+			log.warn(String.format("LDAP lookup and bulk permits leave no pooled connection for logins,"
+					+ " keep them below the pool size of %d", size));
+		}
+		fitPool();
+	}
+
+	/**
+	 * Gives interactive operations the pooled connections the lookup and
+	 * bulk classes leave free
+	 */
+	private void fitPool() {
+		resize(pooledInteractive, poolShare(), compartments.get(Priority.INTERACTIVE).queueTimeout);
+	}
+
+	/**
+	 * @return pooled connections not taken by the lookup and bulk classes,
+	 *         at least 1
+	 */
+	private int poolShare() {
+		return Math.max(1, poolSize - compartments.get(Priority.LOOKUP).size
+				- compartments.get(Priority.BULK).size);
+	}
+
+	/**
+	 * Changes the limits of a compartment
+	 *
+	 * @param c
+	 * @param size
+	 * @param queueTimeout
+	 */
+	private static void resize(Compartment c, int size, long queueTimeout) {
+		synchronized (c) {
+			if (size > c.size) {
+				c.permits.release(size - c.size);
+			} else if (size < c.size) {
+				c.permits.reduce(c.size - size);
+			}
+			c.size = size;
+			c.queueTimeout = queueTimeout;
+		}
+	}
+
+	/**
+	 * Waits for a permit. Every successful call must be matched by
+	 * {@link #release(Priority)}.
+	 *
+	 * @param priority
+	 *            the class of the operation
+	 * @throws RejectedException
+	 *             if no permit became free in time
+	 */
+	public void acquire(Priority priority) throws RejectedException {
+		acquire(compartments.get(priority), priority.name());
+	}
+
+	/**
+	 * Waits for a permit for an operation that will hold a pooled
+	 * connection. Interactive operations first wait for one of the pooled
+	 * connections left to them. Every successful call must be matched by
+	 * {@link #releasePooled(Priority)}.
+	 *
+	 * @param priority
+	 *            the class of the operation
+	 * @throws RejectedException
+	 *             if no permit became free in time
+	 */
+	public void acquirePooled(Priority priority) throws RejectedException {
+		if (priority != Priority.INTERACTIVE) {
+			acquire(priority);
+			return;
+		}
+		acquire(pooledInteractive, "pooled " + priority);
+		try {
+			acquire(priority);
+		} catch (RejectedException re) {
+			pooledInteractive.permits.release();
+			throw re;
+		}
+	}
+
+	/**
+	 * Returns a permit taken by {@link #acquirePooled(Priority)}
+	 *
+	 * @param priority
+	 *            the class of the operation
+	 */
+	public void releasePooled(Priority priority) {
+		release(priority);
+		if (priority == Priority.INTERACTIVE) {
+			pooledInteractive.permits.release();
+		}
+	}
+
+	/**
+	 * Waits for a permit of a compartment
+	 *
+	 * @param c
+	 *            the compartment
+	 * @param name
+	 *            what the compartment limits, for the error message
+	 * @throws RejectedException
+	 *             if no permit became free in time
+	 */
+	private static void acquire(Compartment c, String name) throws RejectedException {
+		boolean acquired;
+		try {
+			acquired = c.permits.tryAcquire(c.queueTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			acquired = false;
+		}
+		if (!acquired) {
+			c.rejected.incrementAndGet();
+			throw new RejectedException(String.format(
+					"Too many %s LDAP operations, none finished within %dms",
+					name, c.queueTimeout));
+		}
+		c.acquired.incrementAndGet();
+	}
+
+	/**
+	 * Returns a permit
+	 *
+	 * @param priority
+	 *            the class of the operation
+	 */
+	public void release(Priority priority) {
+		compartments.get(priority).permits.release();
+	}
+
+	/**
+	 * @param priority
+	 *            the class
+	 * @return number of operations refused in the class
+	 */
+	public long getRejectedCount(Priority priority) {
+		return compartments.get(priority).rejected.get();
+	}
+
+	@Override
+	public Map<String, Integer> getAvailablePermits() {
+		Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<Priority, Compartment> c : compartments.entrySet()) {
+			result.put(c.getKey().name(), c.getValue().permits.availablePermits());
+		}
+		result.put(POOLED_INTERACTIVE, pooledInteractive.permits.availablePermits());
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getAcquiredCounts() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Map.Entry<Priority, Compartment> c : compartments.entrySet()) {
+			result.put(c.getKey().name(), c.getValue().acquired.get());
+		}
+		result.put(POOLED_INTERACTIVE, pooledInteractive.acquired.get());
+		return result;
+	}
+
+	@Override
+	public Map<String, Long> getRejectedCounts() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Map.Entry<Priority, Compartment> c : compartments.entrySet()) {
+			result.put(c.getKey().name(), c.getValue().rejected.get());
+		}
+		result.put(POOLED_INTERACTIVE, pooledInteractive.rejected.get());
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "LdapBulkhead[available=" + getAvailablePermits() + ", rejected="
+				+ getRejectedCounts() + "]";
+	}
+}
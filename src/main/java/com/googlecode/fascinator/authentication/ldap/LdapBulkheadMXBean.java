@@ -0,0 +1,45 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.util.Map;
+
+/**
+ * JMX view of the bulkhead sharing directory capacity between kinds of
+ * work. Maps are keyed by priority class, plus INTERACTIVE_POOLED for the
+ * pooled connections interactive operations may hold.
+ */
+public interface LdapBulkheadMXBean {
+
+	/**
+	 * @return permits currently free in each class
+	 */
+	Map<String, Integer> getAvailablePermits();
+
+	/**
+	 * @return operations let through in each class
+	 */
+	Map<String, Long> getAcquiredCounts();
+
+	/**
+	 * @return operations refused in each class because no permit became free
+	 *         in time
+	 */
+	Map<String, Long> getRejectedCounts();
+}
@@ -0,0 +1,426 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread safe cache keyed by username. Entries expire a fixed
+ * time after they were written and/or last read, and the least recently used
+ * entries are evicted once the cache is full. Keys are case-insensitive
+ * unless configured otherwise.
+ *
+ * <p>
+ * The cache is split into independently locked segments so that concurrent
+ * requests for different users rarely contend.
+ * </p>
+ *
+ * <p>
+ * Optionally, {@link #lookup(String)} reports entries that are about to
+ * expire so the caller can refresh them ahead of time, and keeps serving
+ * entries for a limited time past their expiry while that refresh runs.
+ * </p>
+ *
+ * @param <V> the cached value type
+ */
+public class LdapCache<V> {
+
+	/** Default maximum number of entries */
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	/** Default time (ms) after which an entry expires, 0 for never */
+	public static final int DEFAULT_EXPIRE_AFTER_WRITE = 3600000;
+
+	/** Default time (ms) without reads after which an entry expires, 0 for never */
+	public static final int DEFAULT_EXPIRE_AFTER_ACCESS = 0;
+
+	/** Number of independently locked segments */
+	private static final int SEGMENTS = 16;
+
+	/** Time (ms) after which an entry expires, 0 for never */
+	private final long expireAfterWrite;
+
+	/** Time (ms) without reads after which an entry expires, 0 for never */
+	private final long expireAfterAccess;
+
+	/** Whether keys are compared case sensitively */
+	private final boolean caseSensitive;
+
+	/** Time (ms) before write expiry from which lookups ask for a refresh, 0 for never */
+	private final long refreshAhead;
+
+	/** Time (ms) past write expiry during which lookups still return an entry */
+	private final long maxStaleness;
+
+	private final Segment<V>[] segments;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private final AtomicLong expirationCount = new AtomicLong();
+	private final AtomicLong staleHitCount = new AtomicLong();
+
+	/**
+	 * The result of {@link LdapCache#lookup(String)}
+	 *
+	 * @param <V> the cached value type
+	 */
+	public static class Lookup<V> {
+		private final V value;
+		private final boolean refreshDue;
+		private final boolean stale;
+
+		private Lookup(V value, boolean refreshDue, boolean stale) {
+			this.value = value;
+			this.refreshDue = refreshDue;
+			this.stale = stale;
+		}
+
+		/**
+		 * @return the cached value
+		 */
+		public V getValue() {
+			return value;
+		}
+
+		/**
+		 * @return whether the entry is close to or past expiry and should be
+		 *         reloaded
+		 */
+		public boolean isRefreshDue() {
+			return refreshDue;
+		}
+
+		/**
+		 * @return whether the entry has expired and is only served until it
+		 *         is reloaded
+		 */
+		public boolean isStale() {
+			return stale;
+		}
+	}
+
+	/**
+	 * A cached value with its timestamps
+	 */
+	private static class CacheEntry<V> {
+		private final V value;
+		private final long written;
+		private volatile long accessed;
+
+		private CacheEntry(V value, long now) {
+			this.value = value;
+			this.written = now;
+			this.accessed = now;
+		}
+	}
+
+	/**
+	 * An access ordered map evicting its eldest entry when full
+	 */
+	private static class Segment<T> extends LinkedHashMap<String, CacheEntry<T>> {
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		private final AtomicLong evictionCount;
+
+		private Segment(int capacity, AtomicLong evictionCount) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+			this.evictionCount = evictionCount;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CacheEntry<T>> eldest) {
+			if (size() > capacity) {
+				evictionCount.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a cache with the default settings
+	 */
+	public LdapCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_EXPIRE_AFTER_WRITE,
+				DEFAULT_EXPIRE_AFTER_ACCESS, false);
+	}
+
+	/**
+	 * Creates a cache
+	 *
+	 * @param maxEntries
+	 *            maximum number of entries held
+	 * @param expireAfterWrite
+	 *            time (ms) after which an entry expires, 0 for never
+	 * @param expireAfterAccess
+	 *            time (ms) without reads after which an entry expires, 0 for
+	 *            never
+	 * @param caseSensitive
+	 *            whether keys are compared case sensitively
+	 */
+	public LdapCache(int maxEntries, long expireAfterWrite,
+			long expireAfterAccess, boolean caseSensitive) {
+		this(maxEntries, expireAfterWrite, expireAfterAccess, caseSensitive, 0, 0);
+	}
+
+	/**
+	 * Creates a cache whose lookups support refreshing entries ahead of
+	 * expiry
+	 *
+	 * @param maxEntries
+	 *            maximum number of entries held
+	 * @param expireAfterWrite
+	 *            time (ms) after which an entry expires, 0 for never
+	 * @param expireAfterAccess
+	 *            time (ms) without reads after which an entry expires, 0 for
+	 *            never
+	 * @param caseSensitive
+	 *            whether keys are compared case sensitively
+	 * @param refreshAhead
+	 *            time (ms) before write expiry from which lookups ask for a
+	 *            refresh, 0 for never; at most half of expireAfterWrite
+	 * @param maxStaleness
+	 *            time (ms) past write expiry during which lookups still
+	 *            return an entry, 0 for none
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public LdapCache(int maxEntries, long expireAfterWrite,
+			long expireAfterAccess, boolean caseSensitive, long refreshAhead,
+			long maxStaleness) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be at least 1");
+		}
+		this.expireAfterWrite = expireAfterWrite;
+		this.expireAfterAccess = expireAfterAccess;
+		this.caseSensitive = caseSensitive;
+		this.refreshAhead = expireAfterWrite > 0
+				? Math.max(0, Math.min(refreshAhead, expireAfterWrite / 2)) : 0;
+		this.maxStaleness = expireAfterWrite > 0 ? Math.max(0, maxStaleness) : 0;
+		int segmentCount = Math.min(SEGMENTS, maxEntries);
+		int capacity = (maxEntries + segmentCount - 1) / segmentCount;
+		segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment<V>(capacity, evictionCount);
+		}
+	}
+
+	/**
+	 * Looks up a live entry
+	 *
+	 * @param key
+	 *            a username
+	 * @return the cached value, or null if absent or expired
+	 */
+	public V get(String key) {
+		String normalised = normaliseKey(key);
+		Segment<V> segment = segmentFor(normalised);
+		long now = System.currentTimeMillis();
+		synchronized (segment) {
+			CacheEntry<V> entry = segment.get(normalised);
+			if (entry != null) {
+				if (!isExpired(entry, now)) {
+					entry.accessed = now;
+					hitCount.incrementAndGet();
+					return entry.value;
+				}
+				if (isDiscardable(entry, now)) {
+					segment.remove(normalised);
+					expirationCount.incrementAndGet();
+				}
+			}
+		}
+		missCount.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Looks up an entry, including one that has expired less than the
+	 * maximum staleness ago
+	 *
+	 * @param key
+	 *            a username
+	 * @return the entry and whether it should be refreshed, or null if absent
+	 *         or too old to serve
+	 */
+	public Lookup<V> lookup(String key) {
+		String normalised = normaliseKey(key);
+		Segment<V> segment = segmentFor(normalised);
+		long now = System.currentTimeMillis();
+		synchronized (segment) {
+			CacheEntry<V> entry = segment.get(normalised);
+			if (entry != null) {
+				if (!isDiscardable(entry, now)) {
+					entry.accessed = now;
+					boolean stale = isExpired(entry, now);
+					if (stale) {
+						staleHitCount.incrementAndGet();
+					} else {
+						hitCount.incrementAndGet();
+					}
+					boolean refreshDue = stale || (refreshAhead > 0
+							&& now - entry.written >= expireAfterWrite - refreshAhead);
+					return new Lookup<V>(entry.value, refreshDue, stale);
+				}
+				segment.remove(normalised);
+				expirationCount.incrementAndGet();
+			}
+		}
+		missCount.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Adds or replaces an entry
+	 *
+	 * @param key
+	 *            a username
+	 * @param value
+	 *            the value to cache, not null
+	 */
+	public void put(String key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Cannot cache a null value");
+		}
+		String normalised = normaliseKey(key);
+		Segment<V> segment = segmentFor(normalised);
+		synchronized (segment) {
+			segment.put(normalised, new CacheEntry<V>(value, System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * Removes an entry
+	 *
+	 * @param key
+	 *            a username
+	 */
+	public void remove(String key) {
+		String normalised = normaliseKey(key);
+		Segment<V> segment = segmentFor(normalised);
+		synchronized (segment) {
+			segment.remove(normalised);
+		}
+	}
+
+	/**
+	 * Removes every entry
+	 */
+	public void clear() {
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return number of entries held, including any not yet purged after
+	 *         expiry
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return number of lookups answered from the cache
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return number of lookups not answered from the cache
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return number of lookups answered with an expired entry while it was
+	 *         refreshed
+	 */
+	public long getStaleHitCount() {
+		return staleHitCount.get();
+	}
+
+	/**
+	 * @return number of entries evicted because the cache was full
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * @return number of entries discarded because they expired
+	 */
+	public long getExpirationCount() {
+		return expirationCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"LdapCache[size=%d, hits=%d, staleHits=%d, misses=%d, evictions=%d, expirations=%d]",
+				size(), getHitCount(), getStaleHitCount(), getMissCount(),
+				getEvictionCount(), getExpirationCount());
+	}
+
+	private boolean isExpired(CacheEntry<V> entry, long now) {
+		return (expireAfterWrite > 0 && now - entry.written >= expireAfterWrite)
+				|| (expireAfterAccess > 0 && now - entry.accessed >= expireAfterAccess);
+	}
+
+	/**
+	 * Whether an entry is too old to serve even stale. Entries unused for
+	 * longer than the access expiry are never served stale.
+	 */
+	private boolean isDiscardable(CacheEntry<V> entry, long now) {
+		return (expireAfterWrite > 0 && now - entry.written >= expireAfterWrite + maxStaleness)
+				|| (expireAfterAccess > 0 && now - entry.accessed >= expireAfterAccess);
+	}
+
+	/**
+	 * @param key
+	 *            a key
+	 * @return the key as the cache compares it: in lower case unless the
+	 *         cache is case sensitive
+	 */
+	public String normaliseKey(String key) {
+		return caseSensitive ? key : key.toLowerCase(Locale.ENGLISH);
+	}
+
+	private Segment<V> segmentFor(String normalisedKey) {
+		int h = normalisedKey.hashCode();
+		h ^= (h >>> 16);
+		return segments[(h & 0x7fffffff) % segments.length];
+	}
+}
@@ -0,0 +1,458 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the directory for changed entries so that cached copies of them
+ * can be dropped long before they expire. Each search base is watched by a
+ * daemon thread of its own, either through a Persistent Search
+ * (draft-ietf-ldapext-psearch), which the server answers with every entry
+ * as it is added, modified, renamed or deleted, or, where the server does
+ * not support that, by searching every poll interval for entries whose
+ * <code>modifyTimestamp</code> or <code>createTimestamp</code> is at or
+ * after the newest one seen so far.
+ *
+ * <p>
+ * Polling cannot see deleted entries; those are dropped from caches when
+ * they expire. After a persistent search is lost, changes made while it was
+ * down are caught up with a single poll before it is started again.
+ * </p>
+ */
+public class LdapChangeTracker {
+
+	/** Logging */
+	private Logger log = LoggerFactory.getLogger(LdapChangeTracker.class);
+
+	/** Object identifier of the Persistent Search control */
+	public static final String PERSISTENT_SEARCH_OID = "2.16.840.1.113730.3.4.3";
+
+	/** Default time (ms) between polls */
+	public static final int DEFAULT_POLL_INTERVAL = 30000;
+
+	/** Time (ms) to wait before searching again after an error */
+	private static final long RETRY_DELAY = 10000;
+
+	/** Allowance (ms) for the server's clock differing from ours */
+	private static final long CLOCK_SKEW = 60000;
+
+	/**
+	 * How changes are found
+	 */
+	public enum Mode {
+		/** Persistent search if the server lists it as supported, else polling */
+		AUTO,
+		/** Persistent search, falling back to polling if the server rejects it */
+		PERSISTENT,
+		/** Polling for modified entries */
+		POLL;
+
+		/**
+		 * Reads a mode from configuration
+		 *
+		 * @param value
+		 *            "auto", "persistent" or "poll", case-insensitive
+		 * @return the mode, AUTO if the value is empty or unknown
+		 */
+		public static Mode parse(String value) {
+			if ("persistent".equalsIgnoreCase(value)) {
+				return PERSISTENT;
+			}
+			if ("poll".equalsIgnoreCase(value)) {
+				return POLL;
+			}
+			return AUTO;
+		}
+	}
+
+	/**
+	 * Told about every changed entry
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on a tracker thread for each entry added, modified, renamed
+		 * or deleted
+		 *
+		 * @param dn
+		 *            the entry's DN, its new DN if it was renamed
+		 * @param attrs
+		 *            the entry's attributes that were asked to be returned
+		 */
+		void entryChanged(String dn, Attributes attrs);
+	}
+
+	/**
+	 * The Persistent Search request control, asking for every kind of
+	 * change and for changes only, without entry change notifications. Its
+	 * value is the BER encoding of
+	 * 
+	 * <pre>
+	 * PersistentSearch ::= SEQUENCE {
+	 *         changeTypes INTEGER,
+	 *         changesOnly BOOLEAN,
+	 *         returnECs BOOLEAN }
+	 * </pre>
+	 */
+	static class PersistentSearchControl implements Control {
+
+		private static final long serialVersionUID = 1L;
+
+		/** add (1), delete (2), modify (4) and modDN (8) */
+		private static final byte ALL_CHANGE_TYPES = 15;
+
+		private static final byte[] VALUE = {
+				0x30, 0x09,                   // SEQUENCE, 9 bytes
+				0x02, 0x01, ALL_CHANGE_TYPES, // changeTypes
+				0x01, 0x01, (byte) 0xFF,      // changesOnly TRUE
+				0x01, 0x01, 0x00              // returnECs FALSE
+		};
+
+		@Override
+		public String getID() {
+			return PERSISTENT_SEARCH_OID;
+		}
+
+		@Override
+		public boolean isCritical() {
+			return true;
+		}
+
+		@Override
+		public byte[] getEncodedValue() {
+			return VALUE.clone();
+		}
+	}
+
+	private final Hashtable<String, String> env;
+	private final List<String> bases;
+	private final String[] returningAttrs;
+	private final Mode mode;
+	private final long pollInterval;
+	private final Listener listener;
+
+	private final List<Thread> threads = new ArrayList<Thread>();
+
+	/** Contexts of running persistent searches, closed to stop them */
+	private final Set<LdapContext> openContexts = Collections.synchronizedSet(new HashSet<LdapContext>());
+
+	private volatile boolean running = false;
+
+	private final AtomicLong changeCount = new AtomicLong();
+
+	/**
+	 * @param env
+	 *            environment to bind with
+	 * @param bases
+	 *            DNs of the subtrees to watch
+	 * @param returningAttrs
+	 *            attributes of changed entries to pass to the listener
+	 * @param mode
+	 *            how changes are found
+	 * @param pollInterval
+	 *            time (ms) between polls
+	 * @param listener
+	 *            told about every changed entry
+	 */
+	public LdapChangeTracker(Hashtable<String, String> env, List<String> bases,
+			String[] returningAttrs, Mode mode, long pollInterval, Listener listener) {
+		this.env = new Hashtable<String, String>(env);
+		this.bases = new ArrayList<String>(bases);
+		this.returningAttrs = returningAttrs.clone();
+		this.mode = mode;
+		this.pollInterval = Math.max(1000, pollInterval);
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts watching every search base
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		for (final String base : bases) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					track(base);
+				}
+			}, "ldap-change-tracker");
+			t.setDaemon(true);
+			threads.add(t);
+			t.start();
+		}
+	}
+
+	/**
+	 * Stops watching
+	 */
+	public synchronized void shutdown() {
+		running = false;
+		for (Thread t : threads) {
+			t.interrupt();
+		}
+		threads.clear();
+		synchronized (openContexts) {
+			for (LdapContext ctx : openContexts) {
+				close(ctx);
+			}
+			openContexts.clear();
+		}
+	}
+
+	/**
+	 * @return number of changed entries reported so far
+	 */
+	public long getChangeCount() {
+		return changeCount.get();
+	}
+
+	private void track(String base) {
+		boolean persistent = mode != Mode.POLL;
+		boolean checkSupport = mode == Mode.AUTO;
+		String since = timestamp(System.currentTimeMillis() - CLOCK_SKEW);
+		Set<String> seenAtSince = new HashSet<String>();
+		boolean catchUp = false;
+		while (running) {
+			try {
+				if (checkSupport) {
+					persistent = supportsPersistentSearch();
+					checkSupport = false;
+					log.info(String.format("Tracking LDAP changes under %s by %s", base,
+							persistent ? "persistent search" : "polling"));
+				}
+				if (persistent) {
+					if (catchUp) {
+						poll(base, since, seenAtSince);
+						catchUp = false;
+					}
+					persistentSearch(base);
+					// The server ended the search
+					since = timestamp(System.currentTimeMillis() - CLOCK_SKEW);
+					seenAtSince.clear();
+					catchUp = true;
+				} else {
+					since = poll(base, since, seenAtSince);
+					Thread.sleep(pollInterval);
+				}
+			} catch (OperationNotSupportedException onse) {
+				log.info("Persistent search rejected, polling for LDAP changes under " + base);
+				persistent = false;
+			} catch (NamingException ne) {
+				if (!running) {
+					return;
+				}
+				log.warn("Failed to track LDAP changes under " + base, ne);
+				if (persistent && !catchUp) {
+					since = timestamp(System.currentTimeMillis() - CLOCK_SKEW);
+					seenAtSince.clear();
+					catchUp = true;
+				}
+				try {
+					Thread.sleep(RETRY_DELAY);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			} catch (InterruptedException ie) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return whether the server lists the Persistent Search control in its
+	 *         root DSE
+	 * @throws NamingException
+	 *             if the root DSE could not be read
+	 */
+	private boolean supportsPersistentSearch() throws NamingException {
+		LdapContext ctx = new InitialLdapContext(env, null);
+		try {
+			Attributes rootDse = ctx.getAttributes("", new String[] { "supportedControl" });
+			return LdapAttributeDecoder.values(rootDse.get("supportedControl"))
+					.contains(PERSISTENT_SEARCH_OID);
+		} finally {
+			close(ctx);
+		}
+	}
+
+	/**
+	 * Runs a persistent search until the connection is lost or the tracker
+	 * is stopped
+	 * 
+	 * @param base
+	 *            the subtree to watch
+	 * @throws NamingException
+	 *             if the search could not be started or was lost
+	 */
+	private void persistentSearch(String base) throws NamingException {
+		// The search waits indefinitely for the next change
+		Hashtable<String, String> searchEnv = new Hashtable<String, String>(env);
+		searchEnv.remove("com.sun.jndi.ldap.read.timeout");
+		LdapContext ctx = new InitialLdapContext(searchEnv, null);
+		openContexts.add(ctx);
+		try {
+			if (!running) {
+				return;
+			}
+			ctx.setRequestControls(new Control[] { new PersistentSearchControl() });
+			SearchControls sc = new SearchControls();
+			sc.setSearchScope(SearchControls.SUBTREE_SCOPE);
+			sc.setReturningAttributes(returningAttrs);
+			NamingEnumeration<SearchResult> changes = ctx.search(base, "(objectClass=*)", sc);
+			while (running && changes.hasMore()) {
+				SearchResult change = changes.next();
+				report(change.getNameInNamespace(), change.getAttributes());
+			}
+		} finally {
+			openContexts.remove(ctx);
+			close(ctx);
+		}
+	}
+
+	/**
+	 * Searches for entries created or modified at or after a time
+	 * 
+	 * @param base
+	 *            the subtree to search
+	 * @param since
+	 *            the time, as an LDAP generalized time
+	 * @param seenAtSince
+	 *            DNs already reported with exactly that time, updated to
+	 *            those reported with the returned time
+	 * @return the newest time seen, or <code>since</code> if nothing newer
+	 * @throws NamingException
+	 *             if the search failed
+	 */
+	private String poll(String base, String since, Set<String> seenAtSince) throws NamingException {
+		SearchControls sc = new SearchControls();
+		sc.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		String[] attrs = new String[returningAttrs.length + 2];
+		System.arraycopy(returningAttrs, 0, attrs, 0, returningAttrs.length);
+		attrs[returningAttrs.length] = "modifyTimestamp";
+		attrs[returningAttrs.length + 1] = "createTimestamp";
+		sc.setReturningAttributes(attrs);
+		String filter = "(|(modifyTimestamp>=" + since + ")(createTimestamp>=" + since + "))";
+
+		String newest = since;
+		Set<String> seenAtNewest = new HashSet<String>(seenAtSince);
+		LdapContext ctx = new InitialLdapContext(env, null);
+		try {
+			NamingEnumeration<SearchResult> changes = ctx.search(base, filter, sc);
+			while (changes.hasMore()) {
+				SearchResult change = changes.next();
+				String dn = change.getNameInNamespace();
+				Attributes entry = change.getAttributes();
+				String changed = newer(normaliseTime(LdapAttributeDecoder.firstValue(entry.get("modifyTimestamp"))),
+						normaliseTime(LdapAttributeDecoder.firstValue(entry.get("createTimestamp"))));
+				if (changed.equals(since) && seenAtSince.contains(dn)) {
+					continue;
+				}
+				report(dn, entry);
+				int order = changed.compareTo(newest);
+				if (order > 0) {
+					newest = changed;
+					seenAtNewest.clear();
+				}
+				if (order >= 0) {
+					seenAtNewest.add(dn);
+				}
+			}
+			changes.close();
+		} finally {
+			close(ctx);
+		}
+		seenAtSince.clear();
+		seenAtSince.addAll(seenAtNewest);
+		return newest;
+	}
+
+	private void report(String dn, Attributes attrs) {
+		changeCount.incrementAndGet();
+		log.debug("LDAP entry changed: " + dn);
+		try {
+			listener.entryChanged(dn, attrs);
+		} catch (RuntimeException re) {
+			log.warn("Error handling change of LDAP entry " + dn, re);
+		}
+	}
+
+	/**
+	 * @param millis
+	 *            a time
+	 * @return the time as an LDAP generalized time in UTC, to the second
+	 */
+	static String timestamp(long millis) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date(millis));
+	}
+
+	/**
+	 * Cuts a generalized time down to whole seconds, so that times compare
+	 * as strings. Fractions such as Active Directory's ".0Z" are dropped.
+	 * 
+	 * @param time
+	 *            a generalized time in UTC, may be null
+	 * @return the time in the form yyyyMMddHHmmssZ, empty if none
+	 */
+	private static String normaliseTime(String time) {
+		if (time == null || time.length() < 14) {
+			return "";
+		}
+		return time.substring(0, 14) + "Z";
+	}
+
+	private static String newer(String time1, String time2) {
+		return time1.compareTo(time2) >= 0 ? time1 : time2;
+	}
+
+	private void close(LdapContext ctx) {
+		try {
+			ctx.close();
+		} catch (NamingException ne) {
+			log.debug("Error closing LDAP context", ne);
+		}
+	}
+}
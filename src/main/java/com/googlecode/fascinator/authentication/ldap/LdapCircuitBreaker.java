@@ -0,0 +1,283 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.TimeLimitExceededException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops calling the directory once it keeps failing. After a number of
+ * consecutive connection failures or timeouts the breaker opens and calls
+ * fail straight away with an {@link OpenException}. Once the open period
+ * has passed a single call is let through as a probe: if it succeeds the
+ * breaker closes again, otherwise it stays open for another period.
+ *
+ * <p>
+ * Errors showing the directory answered, such as a rejected password or a
+ * missing entry, count as successes. Calls the bulkhead rejected never
+ * reached the directory and are ignored.
+ * </p>
+ */
+public class LdapCircuitBreaker implements LdapCircuitBreakerMXBean {
+
+	/** Logging */
+	private Logger log = LoggerFactory.getLogger(LdapCircuitBreaker.class);
+
+	/** Default number of consecutive failures that open the breaker */
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+	/** Default time (ms) the breaker stays open before probing */
+	public static final int DEFAULT_OPEN_DURATION = 30000;
+
+	/**
+	 * Breaker states
+	 */
+	public enum State {
+		/** Calls go through */
+		CLOSED,
+		/** Calls fail fast */
+		OPEN,
+		/** A single probe call is in progress */
+		HALF_OPEN
+	}
+
+	/**
+	 * Notified of state changes
+	 */
+	public interface Listener {
+
+		/**
+		 * Called after the breaker changes state
+		 *
+		 * @param from
+		 *            the previous state
+		 * @param to
+		 *            the new state
+		 */
+		void stateChanged(State from, State to);
+	}
+
+	/**
+	 * Raised instead of calling the directory while the breaker is open
+	 */
+	public static class OpenException extends ServiceUnavailableException {
+		private static final long serialVersionUID = 1L;
+
+		private OpenException(String explanation) {
+			super(explanation);
+		}
+	}
+
+	/** Consecutive failures that open the breaker, 0 to never open */
+	private final int failureThreshold;
+
+	/** Time (ms) the breaker stays open before probing */
+	private final long openDuration;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures = 0;
+	private long openedAt = 0;
+	private volatile long lastStateChange = 0;
+
+	private final AtomicLong openCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/**
+	 * Creates a breaker with the default settings
+	 */
+	public LdapCircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION);
+	}
+
+	/**
+	 * Creates a breaker
+	 *
+	 * @param failureThreshold
+	 *            consecutive failures that open the breaker, 0 to never open
+	 * @param openDuration
+	 *            time (ms) the breaker stays open before probing
+	 */
+	public LdapCircuitBreaker(int failureThreshold, long openDuration) {
+		this.failureThreshold = failureThreshold;
+		this.openDuration = openDuration;
+	}
+
+	/**
+	 * Checks a call may go ahead. Every call allowed must be followed by
+	 * {@link #record(NamingException)} once it completes.
+	 *
+	 * @throws OpenException
+	 *             if the breaker is open, or half open with a probe already
+	 *             in progress
+	 */
+	public void check() throws OpenException {
+		State from;
+		synchronized (this) {
+			if (state == State.CLOSED) {
+				return;
+			}
+			if (state == State.HALF_OPEN
+					|| System.currentTimeMillis() - openedAt < openDuration) {
+				rejectedCount.incrementAndGet();
+				throw new OpenException("LDAP directory unavailable, circuit breaker is open");
+			}
+			from = state;
+			state = State.HALF_OPEN;
+		}
+		changed(from, State.HALF_OPEN);
+	}
+
+	/**
+	 * Records the outcome of a call allowed by {@link #check()}
+	 *
+	 * @param error
+	 *            the error the call failed with, or null if it succeeded
+	 */
+	public void record(NamingException error) {
+		if (error instanceof OpenException
+				|| error instanceof LdapBulkhead.RejectedException) {
+			return;
+		}
+		if (error instanceof LdapConnectionPool.ExhaustedException) {
+			// The call never reached the directory. A probe that could not get
+			// a connection leaves the next call to probe instead.
+			synchronized (this) {
+				if (state != State.HALF_OPEN) {
+					return;
+				}
+				state = State.OPEN;
+			}
+			changed(State.HALF_OPEN, State.OPEN);
+			return;
+		}
+		boolean failed = error != null && isFailure(error);
+		State from;
+		State to;
+		synchronized (this) {
+			from = state;
+			if (!failed) {
+				consecutiveFailures = 0;
+				to = State.CLOSED;
+			} else {
+				consecutiveFailures++;
+				if (state == State.HALF_OPEN || (failureThreshold > 0
+						&& consecutiveFailures >= failureThreshold)) {
+					to = State.OPEN;
+					openedAt = System.currentTimeMillis();
+				} else {
+					to = state;
+				}
+			}
+			state = to;
+		}
+		if (from != to) {
+			if (to == State.OPEN) {
+				openCount.incrementAndGet();
+			}
+			changed(from, to);
+		}
+	}
+
+	/**
+	 * Whether an error means the directory could not be reached or did not
+	 * answer in time
+	 *
+	 * @param error
+	 *            the error raised
+	 * @return <code>true</code> for errors that count against the breaker
+	 */
+	public static boolean isFailure(NamingException error) {
+		return LdapServerSet.isUnreachable(error)
+				|| error instanceof TimeLimitExceededException;
+	}
+
+	/**
+	 * Adds a listener for state changes
+	 *
+	 * @param listener
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	private void changed(State from, State to) {
+		lastStateChange = System.currentTimeMillis();
+		if (to == State.OPEN) {
+			log.warn("LDAP circuit breaker opened after " + getConsecutiveFailures()
+					+ " failures, retrying in " + openDuration + "ms");
+		} else {
+			log.info("LDAP circuit breaker " + from + " -> " + to);
+		}
+		for (Listener listener : listeners) {
+			try {
+				listener.stateChanged(from, to);
+			} catch (RuntimeException re) {
+				log.warn("Error in circuit breaker listener", re);
+			}
+		}
+	}
+
+	/**
+	 * @return the current state
+	 */
+	public synchronized State getCurrentState() {
+		return state;
+	}
+
+	@Override
+	public String getState() {
+		return getCurrentState().name();
+	}
+
+	@Override
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	@Override
+	public long getOpenCount() {
+		return openCount.get();
+	}
+
+	@Override
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	@Override
+	public long getLastStateChange() {
+		return lastStateChange;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("LdapCircuitBreaker[state=%s, failures=%d, opened=%d, rejected=%d]",
+				getState(), getConsecutiveFailures(), getOpenCount(), getRejectedCount());
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+/**
+ * JMX view of the circuit breaker guarding directory calls
+ */
+public interface LdapCircuitBreakerMXBean {
+
+	/**
+	 * @return CLOSED, OPEN or HALF_OPEN
+	 */
+	String getState();
+
+	/**
+	 * @return number of failures since the last success
+	 */
+	int getConsecutiveFailures();
+
+	/**
+	 * @return number of times the breaker has opened
+	 */
+	long getOpenCount();
+
+	/**
+	 * @return number of calls refused while the breaker was open
+	 */
+	long getRejectedCount();
+
+	/**
+	 * @return time (ms since the epoch) of the last state change, 0 if none
+	 */
+	long getLastStateChange();
+}
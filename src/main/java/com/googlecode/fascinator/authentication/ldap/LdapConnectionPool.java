@@ -0,0 +1,582 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of LDAP contexts bound with a single, fixed environment
+ * (normally the system principal). Contexts are validated on borrow, idle
+ * contexts above the minimum size are evicted in the background and basic
+ * usage statistics are kept. When a server set is given, new contexts are
+ * opened on its preferred server, failing over to the next one, and idle
+ * contexts on a server that has become unavailable are discarded.
+ *
+ * <p>
+ * Callers must always hand a borrowed connection back through
+ * {@link #release(Connection)}, typically in a <code>finally</code> block.
+ * </p>
+ */
+public class LdapConnectionPool {
+
+	/** Logging */
+	private Logger log = LoggerFactory.getLogger(LdapConnectionPool.class);
+
+	/** Default minimum number of connections kept open */
+	public static final int DEFAULT_MIN_SIZE = 0;
+
+	/** Default maximum number of connections */
+	public static final int DEFAULT_MAX_SIZE = 10;
+
+	/** Default time (ms) an idle connection is kept before eviction */
+	public static final int DEFAULT_MAX_IDLE_TIME = 300000;
+
+	/** Default time (ms) to wait for a free connection */
+	public static final int DEFAULT_BORROW_TIMEOUT = 5000;
+
+	/** Default time (ms) a recently used connection is trusted without validation */
+	public static final int DEFAULT_VALIDATION_INTERVAL = 5000;
+
+	/** Environment used to create every pooled context */
+	private final Hashtable<String, String> env;
+
+	/** Minimum number of connections kept open */
+	private final int minSize;
+
+	/** Maximum number of connections in use at once */
+	private final int maxSize;
+
+	/** Time (ms) an idle connection is kept before eviction */
+	private final long maxIdleTime;
+
+	/** Time (ms) to wait for a free connection */
+	private final long borrowTimeout;
+
+	/** Whether idle connections are validated before being handed out */
+	private final boolean validateOnBorrow;
+
+	/** Time (ms) a recently used connection is trusted without validation */
+	private final long validationInterval;
+
+	/** Idle connections, most recently used first */
+	private final LinkedBlockingDeque<Connection> idle = new LinkedBlockingDeque<Connection>();
+
+	/** One permit per connection that may be borrowed at once */
+	private final Semaphore permits;
+
+	/** Background eviction of idle connections */
+	private final ScheduledExecutorService evictor;
+
+	private volatile boolean closed = false;
+
+	/** Where connection timings are recorded, if anywhere */
+	private volatile LdapMetrics metrics;
+
+	/** Servers to open connections on, or null to use the environment's URL */
+	private volatile LdapServerSet servers;
+
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong destroyedCount = new AtomicLong();
+	private final AtomicLong borrowedCount = new AtomicLong();
+	private final AtomicLong validationFailureCount = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+
+	/**
+	 * Raised when no pooled connection becomes free in time. The directory
+	 * was never asked, so this says nothing about its health.
+	 */
+	public static class ExhaustedException extends ServiceUnavailableException {
+		private static final long serialVersionUID = 1L;
+
+		private ExhaustedException(String explanation) {
+			super(explanation);
+		}
+	}
+
+	/**
+	 * A pooled LDAP context
+	 */
+	public static class Connection {
+		private final LdapConnectionPool pool;
+		private final LdapContext context;
+		private final String server;
+		private volatile long lastUsed;
+		private volatile boolean broken = false;
+		private boolean dedicated = false;
+
+		private Connection(LdapConnectionPool pool, LdapContext context, String server) {
+			this.pool = pool;
+			this.context = context;
+			this.server = server;
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return the underlying context, valid until the connection is
+		 *         released
+		 */
+		public LdapContext getContext() {
+			return context;
+		}
+
+		/**
+		 * @return URL of the server the connection is open on
+		 */
+		public String getServer() {
+			return server;
+		}
+
+		/**
+		 * Flags the connection as unusable, so it is closed rather than
+		 * returned to the pool on release.
+		 */
+		public void markBroken() {
+			broken = true;
+		}
+	}
+
+	/**
+	 * Creates a pool with the default settings
+	 *
+	 * @param env
+	 *            JNDI environment for the pooled contexts
+	 */
+	public LdapConnectionPool(Hashtable<String, String> env) {
+		this(env, DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_MAX_IDLE_TIME,
+				DEFAULT_BORROW_TIMEOUT, true, DEFAULT_VALIDATION_INTERVAL);
+	}
+
+	/**
+	 * Creates a pool
+	 *
+	 * @param env
+	 *            JNDI environment for the pooled contexts
+	 * @param minSize
+	 *            minimum number of connections kept open
+	 * @param maxSize
+	 *            maximum number of connections
+	 * @param maxIdleTime
+	 *            time (ms) an idle connection is kept before eviction
+	 * @param borrowTimeout
+	 *            time (ms) to wait for a free connection
+	 * @param validateOnBorrow
+	 *            whether idle connections are checked before use
+	 * @param validationInterval
+	 *            time (ms) a recently used connection is trusted without
+	 *            validation
+	 */
+	public LdapConnectionPool(Hashtable<String, String> env, int minSize,
+			int maxSize, long maxIdleTime, long borrowTimeout,
+			boolean validateOnBorrow, long validationInterval) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be at least 1");
+		}
+		this.env = new Hashtable<String, String>(env);
+		this.maxSize = maxSize;
+		this.minSize = Math.max(0, Math.min(minSize, maxSize));
+		this.maxIdleTime = maxIdleTime;
+		this.borrowTimeout = borrowTimeout;
+		this.validateOnBorrow = validateOnBorrow;
+		this.validationInterval = validationInterval;
+		this.permits = new Semaphore(maxSize, true);
+
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ldap-pool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(1000, Math.min(maxIdleTime / 2, 30000));
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evict();
+			}
+		}, 0, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Creates an empty pool with the same settings, metrics and servers as
+	 * this one but a different environment
+	 *
+	 * @param newEnv
+	 *            JNDI environment for the pooled contexts
+	 * @return the new pool
+	 */
+	public LdapConnectionPool copy(Hashtable<String, String> newEnv) {
+		LdapConnectionPool pool = new LdapConnectionPool(newEnv, minSize, maxSize,
+				maxIdleTime, borrowTimeout, validateOnBorrow, validationInterval);
+		pool.setMetrics(metrics);
+		pool.setServerSet(servers);
+		return pool;
+	}
+
+	/**
+	 * Borrows a connection, creating one if none is idle and the pool is not
+	 * at its maximum size.
+	 *
+	 * @return a connection bound with the pool's environment
+	 * @throws NamingException
+	 *             an {@link ExhaustedException} if no connection becomes
+	 *             free in time, or the error raised if a new one cannot be
+	 *             created
+	 */
+	public Connection borrow() throws NamingException {
+		if (closed) {
+			throw new ServiceUnavailableException("LDAP connection pool is closed");
+		}
+		try {
+			if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+				timeoutCount.incrementAndGet();
+				throw new ExhaustedException(String.format(
+						"Timed out after %dms waiting for an LDAP connection",
+						borrowTimeout));
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new ExhaustedException(
+					"Interrupted waiting for an LDAP connection");
+		}
+
+		try {
+			Connection conn;
+			while ((conn = idle.pollFirst()) != null) {
+				if (isValid(conn)) {
+					conn.lastUsed = System.currentTimeMillis();
+					borrowedCount.incrementAndGet();
+					return conn;
+				}
+				validationFailureCount.incrementAndGet();
+				destroy(conn);
+			}
+			conn = create();
+			borrowedCount.incrementAndGet();
+			return conn;
+		} catch (NamingException ne) {
+			permits.release();
+			throw ne;
+		} catch (RuntimeException re) {
+			permits.release();
+			throw re;
+		}
+	}
+
+	/**
+	 * Opens a connection outside the pool, for long running work that should
+	 * not keep a pooled connection from other callers. It does not count
+	 * against the maximum size and is closed when released.
+	 *
+	 * @return a connection bound with the pool's environment
+	 * @throws NamingException
+	 *             if the pool is closed or the connection cannot be opened
+	 */
+	public Connection openDedicated() throws NamingException {
+		if (closed) {
+			throw new ServiceUnavailableException("LDAP connection pool is closed");
+		}
+		Connection conn = create();
+		conn.dedicated = true;
+		return conn;
+	}
+
+	/**
+	 * Returns a borrowed connection to the pool it came from. Broken
+	 * connections, or any released after the pool was closed, are closed
+	 * instead, as are dedicated connections.
+	 *
+	 * @param conn
+	 *            the borrowed connection, may be null
+	 */
+	public void release(Connection conn) {
+		if (conn == null) {
+			return;
+		}
+		if (conn.pool != this) {
+			conn.pool.release(conn);
+			return;
+		}
+		if (conn.dedicated) {
+			destroy(conn);
+			return;
+		}
+		try {
+			if (conn.broken || closed || idle.size() >= maxSize) {
+				destroy(conn);
+			} else {
+				conn.lastUsed = System.currentTimeMillis();
+				idle.offerFirst(conn);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Closes every idle connection and stops the evictor. Connections still
+	 * in use are closed as they are released.
+	 */
+	public void close() {
+		closed = true;
+		evictor.shutdownNow();
+		Connection conn;
+		while ((conn = idle.pollFirst()) != null) {
+			destroy(conn);
+		}
+	}
+
+	/**
+	 * Creates a new pooled context, trying each available server in turn
+	 * until one can be reached
+	 *
+	 * @return the new connection
+	 * @throws NamingException
+	 */
+	private Connection create() throws NamingException {
+		LdapServerSet set = servers;
+		if (set == null) {
+			return create(env.get(Context.PROVIDER_URL));
+		}
+		NamingException unreachable = null;
+		for (LdapServerSet.Server server : set.getServersToTry()) {
+			long start = System.nanoTime();
+			try {
+				Connection conn = create(server.getUrl());
+				set.recordSuccess(server.getUrl(), start);
+				return conn;
+			} catch (NamingException ne) {
+				set.recordFailure(server.getUrl(), ne);
+				if (!LdapServerSet.isUnreachable(ne)) {
+					throw ne;
+				}
+				log.warn("Failed to connect to " + server.getUrl() + ", trying next server");
+				unreachable = ne;
+			}
+		}
+		throw unreachable;
+	}
+
+	/**
+	 * Creates a new pooled context on one server
+	 *
+	 * @param server
+	 *            the server URL
+	 * @return the new connection
+	 * @throws NamingException
+	 */
+	private Connection create(String server) throws NamingException {
+		Hashtable<String, String> serverEnv = new Hashtable<String, String>(env);
+		serverEnv.put(Context.PROVIDER_URL, server);
+		long start = System.nanoTime();
+		Connection conn;
+		try {
+			conn = new Connection(this, new InitialLdapContext(serverEnv, null), server);
+		} catch (NamingException ne) {
+			recordConnect(server, start, ne);
+			throw ne;
+		}
+		recordConnect(server, start, null);
+		createdCount.incrementAndGet();
+		return conn;
+	}
+
+	private void recordConnect(String server, long start, NamingException error) {
+		LdapMetrics m = metrics;
+		if (m != null) {
+			m.record(LdapMetrics.Operation.CONNECT, server, start, error);
+		}
+	}
+
+	/**
+	 * Opens new connections on the servers of a server set rather than the
+	 * environment's URL
+	 *
+	 * @param servers
+	 *            the servers to use, or null for the environment's URL
+	 */
+	public void setServerSet(LdapServerSet servers) {
+		this.servers = servers;
+	}
+
+	/**
+	 * Records the time taken to open each connection
+	 *
+	 * @param metrics
+	 *            where to record connection timings
+	 */
+	public void setMetrics(LdapMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Closes a pooled context, ignoring any error
+	 *
+	 * @param conn
+	 */
+	private void destroy(Connection conn) {
+		destroyedCount.incrementAndGet();
+		try {
+			conn.context.close();
+		} catch (NamingException ne) {
+			log.debug("Error closing pooled LDAP connection", ne);
+		}
+	}
+
+	/**
+	 * Checks an idle connection is still usable: its server must not have
+	 * been marked unavailable, and the root entry is read without attributes.
+	 *
+	 * @param conn
+	 * @return <code>true</code> if the connection may be handed out
+	 */
+	private boolean isValid(Connection conn) {
+		LdapServerSet set = servers;
+		if (set != null && !set.isHealthy(conn.server)) {
+			return false;
+		}
+		if (!validateOnBorrow
+				|| System.currentTimeMillis() - conn.lastUsed < validationInterval) {
+			return true;
+		}
+		try {
+			conn.context.getAttributes("", new String[] { "1.1" });
+			return true;
+		} catch (NamingException ne) {
+			log.debug("Pooled LDAP connection failed validation", ne);
+			return false;
+		}
+	}
+
+	/**
+	 * Closes connections idle for longer than the maximum idle time while
+	 * keeping at least the minimum size, then tops the pool up to the
+	 * minimum size.
+	 */
+	private void evict() {
+		try {
+			long cutoff = System.currentTimeMillis() - maxIdleTime;
+			Iterator<Connection> it = idle.descendingIterator();
+			while (it.hasNext() && idle.size() > minSize) {
+				Connection conn = it.next();
+				if (conn.lastUsed < cutoff && idle.removeLastOccurrence(conn)) {
+					destroy(conn);
+				}
+			}
+			while (!closed && idle.size() < minSize && permits.tryAcquire()) {
+				try {
+					Connection conn = create();
+					idle.offerLast(conn);
+					// close() may have drained the pool while this was created
+					if (closed && idle.remove(conn)) {
+						destroy(conn);
+					}
+				} finally {
+					permits.release();
+				}
+			}
+		} catch (NamingException ne) {
+			log.warn("Failed to pre-create pooled LDAP connection", ne);
+		} catch (RuntimeException re) {
+			log.warn("Error during LDAP connection pool eviction", re);
+		}
+	}
+
+	/**
+	 * @return number of connections currently borrowed
+	 */
+	public int getActiveCount() {
+		return maxSize - permits.availablePermits();
+	}
+
+	/**
+	 * @return number of open connections waiting in the pool
+	 */
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * @return maximum number of connections
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return number of connections opened since the pool was created
+	 */
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	/**
+	 * @return number of connections closed since the pool was created
+	 */
+	public long getDestroyedCount() {
+		return destroyedCount.get();
+	}
+
+	/**
+	 * @return number of successful borrows
+	 */
+	public long getBorrowedCount() {
+		return borrowedCount.get();
+	}
+
+	/**
+	 * @return number of idle connections discarded by validation
+	 */
+	public long getValidationFailureCount() {
+		return validationFailureCount.get();
+	}
+
+	/**
+	 * @return number of borrows that timed out waiting for a connection
+	 */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"LdapConnectionPool[active=%d, idle=%d, max=%d, created=%d, destroyed=%d, borrowed=%d, validationFailures=%d, timeouts=%d]",
+				getActiveCount(), getIdleCount(), maxSize, getCreatedCount(),
+				getDestroyedCount(), getBorrowedCount(),
+				getValidationFailureCount(), getTimeoutCount());
+	}
+}
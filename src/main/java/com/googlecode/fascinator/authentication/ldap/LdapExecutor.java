@@ -0,0 +1,168 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs LDAP operations off the caller's thread, so that web request threads
+ * can wait with a deadline instead of blocking for the whole round trip.
+ * Tasks still running when their deadline passes are cancelled, and their
+ * futures fail with a {@link java.util.concurrent.CancellationException}.
+ */
+public class LdapExecutor {
+
+	/** Default number of worker threads */
+	public static final int DEFAULT_THREADS = 20;
+
+	/** Default number of tasks that may wait for a worker */
+	public static final int DEFAULT_QUEUE_SIZE = 200;
+
+	/** Runs the tasks */
+	private final ExecutorService workers;
+
+	/** Cancels tasks at their deadline */
+	private final ScheduledThreadPoolExecutor deadlines;
+
+	/**
+	 * A task that stops its deadline timer once it completes
+	 */
+	private static class DeadlineTask<T> extends FutureTask<T> {
+		private volatile ScheduledFuture<?> timer;
+
+		private DeadlineTask(Callable<T> callable) {
+			super(callable);
+		}
+
+		@Override
+		protected void done() {
+			ScheduledFuture<?> t = timer;
+			if (t != null) {
+				t.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Creates an executor with a bounded pool of daemon worker threads
+	 *
+	 * @param threads
+	 *            number of worker threads
+	 * @param queueSize
+	 *            number of tasks that may wait for a worker before further
+	 *            tasks are rejected
+	 */
+	public LdapExecutor(int threads, int queueSize) {
+		this(new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+				daemonThreads("ldap-worker")));
+	}
+
+	/**
+	 * Creates an executor running tasks on the given service, for example
+	 * one that starts a virtual thread per task where the platform has them.
+	 *
+	 * @param workers
+	 *            the service to run tasks on, shut down with this executor
+	 */
+	public LdapExecutor(ExecutorService workers) {
+		this.workers = workers;
+		this.deadlines = new ScheduledThreadPoolExecutor(1,
+				daemonThreads("ldap-deadline"));
+		this.deadlines.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Submits a task
+	 *
+	 * @param task
+	 *            the operation to run
+	 * @param deadline
+	 *            time (ms) after which the task is cancelled, 0 for none
+	 * @return the future result
+	 * @throws RejectedExecutionException
+	 *             if too many tasks are already waiting
+	 */
+	public <T> Future<T> submit(Callable<T> task, long deadline) {
+		final DeadlineTask<T> future = new DeadlineTask<T>(task);
+		workers.execute(future);
+		if (deadline > 0 && !future.isDone()) {
+			future.timer = deadlines.schedule(new Runnable() {
+				@Override
+				public void run() {
+					future.cancel(true);
+				}
+			}, deadline, TimeUnit.MILLISECONDS);
+			if (future.isDone()) {
+				future.timer.cancel(false);
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * Wraps an already known result as a completed future
+	 *
+	 * @param value
+	 *            the result
+	 * @return a future that is already done
+	 */
+	public static <T> Future<T> completed(final T value) {
+		FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+			@Override
+			public T call() {
+				return value;
+			}
+		});
+		future.run();
+		return future;
+	}
+
+	/**
+	 * Stops the worker threads. Running tasks are interrupted.
+	 */
+	public void shutdown() {
+		workers.shutdownNow();
+		deadlines.shutdownNow();
+	}
+
+	private static ThreadFactory daemonThreads(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+}
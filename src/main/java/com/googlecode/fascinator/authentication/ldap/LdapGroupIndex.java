@@ -0,0 +1,289 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+
+/**
+ * An immutable snapshot of group membership with nested groups already
+ * expanded. For every DN that is a member of some group, directly or
+ * through other groups, it holds the set of all groups that contain it, so
+ * checking a user's groups is a single map lookup rather than a chain of
+ * searches. Membership cycles are tolerated.
+ *
+ * <p>
+ * DNs are compared in a normalised form, see {@link #normaliseDn(String)}.
+ * Members with the same direct groups share one expanded set, which keeps
+ * the snapshot small when many users belong to the same few groups.
+ * </p>
+ */
+public class LdapGroupIndex {
+
+	/** Default filter matching group entries */
+	public static final String DEFAULT_GROUP_FILTER = "(|(objectClass=group)(objectClass=groupOfNames)(objectClass=groupOfUniqueNames))";
+
+	/** Default attribute of a group listing its members' DNs */
+	public static final String DEFAULT_MEMBER_ATTR = "member";
+
+	/** Default attribute of an entry listing the DNs of its groups */
+	public static final String DEFAULT_MEMBER_OF_ATTR = "memberOf";
+
+	/** Default time (ms) between rebuilds of the index */
+	public static final int DEFAULT_REFRESH_INTERVAL = 600000;
+
+	/** An index that has not been built, containing no groups */
+	public static final LdapGroupIndex EMPTY = new LdapGroupIndex(
+			Collections.<String, Set<String>> emptyMap(), Collections.<String, Set<String>> emptyMap(), 0);
+
+	/**
+	 * Collects the direct members of each group, then expands them
+	 */
+	public static class Builder {
+
+		/** Groups directly containing each member, by normalised DN */
+		private final Map<String, Set<String>> parents = new HashMap<String, Set<String>>();
+
+		private final Set<String> groups = new HashSet<String>();
+
+		/**
+		 * Adds a group and its direct members
+		 *
+		 * @param groupDn
+		 *            the group's DN
+		 * @param memberDns
+		 *            DNs of its members, users or groups
+		 * @return this builder
+		 */
+		public Builder addGroup(String groupDn, Collection<String> memberDns) {
+			String group = normaliseDn(groupDn);
+			groups.add(group);
+			for (String memberDn : memberDns) {
+				String member = normaliseDn(memberDn);
+				Set<String> memberParents = parents.get(member);
+				if (memberParents == null) {
+					memberParents = new HashSet<String>();
+					parents.put(member, memberParents);
+				}
+				memberParents.add(group);
+			}
+			return this;
+		}
+
+		/**
+		 * @return the index of the groups added so far
+		 */
+		public LdapGroupIndex build() {
+			Map<String, Set<String>> ancestors = new HashMap<String, Set<String>>();
+			for (String group : groups) {
+				ancestors.put(group, closure(Collections.singleton(group)));
+			}
+			Map<Set<String>, Set<String>> shared = new HashMap<Set<String>, Set<String>>();
+			Map<String, Set<String>> groupsOf = new HashMap<String, Set<String>>();
+			for (Map.Entry<String, Set<String>> member : parents.entrySet()) {
+				Set<String> expanded = shared.get(member.getValue());
+				if (expanded == null) {
+					expanded = Collections.unmodifiableSet(closure(member.getValue()));
+					shared.put(member.getValue(), expanded);
+				}
+				groupsOf.put(member.getKey(), expanded);
+			}
+			return new LdapGroupIndex(groupsOf, ancestors, System.currentTimeMillis());
+		}
+
+		/**
+		 * @param start
+		 *            normalised group DNs
+		 * @return the groups plus every group containing them, transitively
+		 */
+		private Set<String> closure(Set<String> start) {
+			Set<String> seen = new LinkedHashSet<String>(start);
+			Deque<String> pending = new ArrayDeque<String>(start);
+			while (!pending.isEmpty()) {
+				Set<String> next = parents.get(pending.pop());
+				if (next != null) {
+					for (String parent : next) {
+						if (seen.add(parent)) {
+							pending.push(parent);
+						}
+					}
+				}
+			}
+			return seen;
+		}
+	}
+
+	/** Every group containing each member, transitively, by normalised DN */
+	private final Map<String, Set<String>> groupsOf;
+
+	/** Each group with every group containing it, by normalised DN */
+	private final Map<String, Set<String>> ancestors;
+
+	private final long builtAt;
+
+	private LdapGroupIndex(Map<String, Set<String>> groupsOf,
+			Map<String, Set<String>> ancestors, long builtAt) {
+		this.groupsOf = groupsOf;
+		this.ancestors = ancestors;
+		this.builtAt = builtAt;
+	}
+
+	/**
+	 * @param memberDn
+	 *            DN of a user or group
+	 * @return normalised DNs of every group containing it, directly or
+	 *         through nested groups
+	 */
+	public Set<String> getGroups(String memberDn) {
+		Set<String> result = groupsOf.get(normaliseDn(memberDn));
+		return result == null ? Collections.<String> emptySet() : result;
+	}
+
+	/**
+	 * Expands groups, such as those listed by an entry's memberOf attribute,
+	 * with every group containing them. Groups not in the index are kept as
+	 * they are.
+	 *
+	 * @param groupDns
+	 *            DNs of groups
+	 * @return normalised DNs of the groups and their ancestors
+	 */
+	public Set<String> expand(Collection<String> groupDns) {
+		Set<String> result = new LinkedHashSet<String>();
+		for (String groupDn : groupDns) {
+			String group = normaliseDn(groupDn);
+			Set<String> groupAncestors = ancestors.get(group);
+			if (groupAncestors == null) {
+				result.add(group);
+			} else {
+				result.addAll(groupAncestors);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param memberDn
+	 *            DN of a user or group
+	 * @param groupDn
+	 *            DN of a group
+	 * @return whether the member belongs to the group, directly or through
+	 *         nested groups
+	 */
+	public boolean isMember(String memberDn, String groupDn) {
+		return getGroups(memberDn).contains(normaliseDn(groupDn));
+	}
+
+	/**
+	 * @param dn
+	 *            a DN
+	 * @return whether it is one of the groups indexed
+	 */
+	public boolean isGroup(String dn) {
+		return ancestors.containsKey(normaliseDn(dn));
+	}
+
+	/**
+	 * @return whether the index has been built from the directory
+	 */
+	public boolean isLoaded() {
+		return builtAt > 0;
+	}
+
+	/**
+	 * @return when the index was built, 0 if never
+	 */
+	public long getBuiltAt() {
+		return builtAt;
+	}
+
+	/**
+	 * @return number of groups indexed
+	 */
+	public int getGroupCount() {
+		return ancestors.size();
+	}
+
+	/**
+	 * @return number of users and groups known to belong to some group
+	 */
+	public int getMemberCount() {
+		return groupsOf.size();
+	}
+
+	/**
+	 * Normalises a DN for comparison: attribute types and values are lower
+	 * cased and the spacing around separators is removed. Strings that are
+	 * not valid DNs are only trimmed and lower cased.
+	 *
+	 * @param dn
+	 *            a DN
+	 * @return the normalised DN
+	 */
+	public static String normaliseDn(String dn) {
+		try {
+			LdapName name = new LdapName(dn);
+			StringBuilder result = new StringBuilder();
+			for (int i = name.size() - 1; i >= 0; i--) {
+				if (result.length() > 0) {
+					result.append(',');
+				}
+				result.append(name.getRdn(i).toString());
+			}
+			return result.toString().toLowerCase(Locale.ENGLISH);
+		} catch (InvalidNameException ine) {
+			return dn.trim().toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+	/**
+	 * @param dn
+	 *            a DN
+	 * @return the value of its most specific RDN, such as the common name
+	 *         of a group, or the DN itself if it cannot be parsed
+	 */
+	public static String nameOf(String dn) {
+		try {
+			LdapName name = new LdapName(dn);
+			if (name.size() > 0) {
+				return String.valueOf(name.getRdn(name.size() - 1).getValue());
+			}
+		} catch (InvalidNameException ine) {
+			// Fall through
+		}
+		return dn;
+	}
+
+	@Override
+	public String toString() {
+		return "LdapGroupIndex[groups=" + getGroupCount() + ", members="
+				+ getMemberCount() + ", builtAt=" + builtAt + "]";
+	}
+}
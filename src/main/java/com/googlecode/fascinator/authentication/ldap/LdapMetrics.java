@@ -0,0 +1,209 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timings and failure counts of LDAP operations, split by kind of operation
+ * and server. Once {@link #registerMBeans()} has been called every set of
+ * statistics is published as an {@link LdapOperationStatsMXBean} under the
+ * <code>com.googlecode.fascinator.authentication.ldap</code> JMX domain,
+ * along with any other MBeans added through {@link #addMBean(String, Object)}.
+ */
+public class LdapMetrics {
+
+	/** Logging */
+	private Logger log = LoggerFactory.getLogger(LdapMetrics.class);
+
+	/** JMX domain of the published statistics */
+	public static final String JMX_DOMAIN = "com.googlecode.fascinator.authentication.ldap";
+
+	/**
+	 * Kinds of LDAP operation
+	 */
+	public enum Operation {
+		/** Opening and binding a pooled system principal connection */
+		CONNECT,
+		/** Binding as a user to check their password */
+		BIND,
+		/** Searching for a user's DN */
+		DN_RESOLUTION,
+		/** Reading attributes of a user */
+		ATTRIBUTE_SEARCH,
+		/** Working out a user's roles */
+		ROLE_LOOKUP,
+		/** Free-form searches */
+		QUERY
+	}
+
+	private final ConcurrentHashMap<String, LdapOperationStats> stats = new ConcurrentHashMap<String, LdapOperationStats>();
+
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	/** Other MBeans to publish, by type */
+	private final Map<String, Object> extraBeans = new LinkedHashMap<String, Object>();
+
+	private volatile boolean jmxEnabled = false;
+
+	/**
+	 * Records an operation that started at the given time and has just
+	 * finished
+	 *
+	 * @param operation
+	 *            the kind of operation
+	 * @param server
+	 *            the server it ran against
+	 * @param startNanos
+	 *            {@link System#nanoTime()} when it started
+	 * @param error
+	 *            the error it failed with, or null if it succeeded
+	 */
+	public void record(Operation operation, String server, long startNanos, Throwable error) {
+		long micros = (System.nanoTime() - startNanos) / 1000;
+		getStats(operation, server).record(micros, error);
+	}
+
+	/**
+	 * Gets the statistics of an operation, creating them if needed
+	 *
+	 * @param operation
+	 *            the kind of operation
+	 * @param server
+	 *            the server it ran against
+	 * @return the statistics
+	 */
+	public LdapOperationStats getStats(Operation operation, String server) {
+		String key = operation + "|" + server;
+		LdapOperationStats result = stats.get(key);
+		if (result == null) {
+			LdapOperationStats created = new LdapOperationStats(operation, server);
+			result = stats.putIfAbsent(key, created);
+			if (result == null) {
+				result = created;
+				if (jmxEnabled) {
+					register(created);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return every set of statistics recorded so far
+	 */
+	public List<LdapOperationStats> getAllStats() {
+		return new ArrayList<LdapOperationStats>(stats.values());
+	}
+
+	/**
+	 * Publishes all current and future statistics to the platform MBean
+	 * server
+	 */
+	public synchronized void registerMBeans() {
+		jmxEnabled = true;
+		for (LdapOperationStats s : stats.values()) {
+			register(s);
+		}
+		for (Map.Entry<String, Object> bean : extraBeans.entrySet()) {
+			register(bean.getKey(), bean.getValue());
+		}
+	}
+
+	/**
+	 * Adds an MBean to publish alongside the operation statistics, replacing
+	 * any added earlier with the same type
+	 *
+	 * @param type
+	 *            the <code>type</code> key of its object name
+	 * @param bean
+	 *            the MBean
+	 */
+	public synchronized void addMBean(String type, Object bean) {
+		extraBeans.put(type, bean);
+		if (jmxEnabled) {
+			register(type, bean);
+		}
+	}
+
+	/**
+	 * Removes every published statistics MBean
+	 */
+	public synchronized void unregisterMBeans() {
+		jmxEnabled = false;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : registered) {
+			try {
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+			} catch (JMException e) {
+				log.debug("Failed to unregister " + name, e);
+			}
+		}
+		registered.clear();
+	}
+
+	/**
+	 * Publishes one set of statistics, replacing any MBean of the same name
+	 * left by an earlier instance of the plugin
+	 *
+	 * @param s
+	 *            the statistics
+	 */
+	private synchronized void register(LdapOperationStats s) {
+		try {
+			register(new ObjectName(JMX_DOMAIN + ":type=LdapOperation,server="
+					+ ObjectName.quote(s.getServer()) + ",name=" + s.getOperation()), s);
+		} catch (JMException e) {
+			log.warn("Failed to publish LDAP statistics over JMX", e);
+		}
+	}
+
+	private synchronized void register(String type, Object bean) {
+		try {
+			register(new ObjectName(JMX_DOMAIN + ":type=" + type), bean);
+		} catch (JMException e) {
+			log.warn("Failed to publish " + type + " over JMX", e);
+		}
+	}
+
+	private void register(ObjectName name, Object bean) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(bean, name);
+		if (!registered.contains(name)) {
+			registered.add(name);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Success and failure timings of one kind of LDAP operation against one
+ * server.
+ */
+public class LdapOperationStats implements LdapOperationStatsMXBean {
+
+	private final LdapMetrics.Operation operation;
+
+	private final String server;
+
+	private final LatencyHistogram successes = new LatencyHistogram();
+
+	private final LatencyHistogram failures = new LatencyHistogram();
+
+	private final ConcurrentHashMap<String, AtomicLong> failuresByType = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Creates empty statistics
+	 *
+	 * @param operation
+	 *            the kind of operation
+	 * @param server
+	 *            the server the operation runs against
+	 */
+	public LdapOperationStats(LdapMetrics.Operation operation, String server) {
+		this.operation = operation;
+		this.server = server;
+	}
+
+	/**
+	 * Records one operation
+	 *
+	 * @param micros
+	 *            how long it took, in microseconds
+	 * @param error
+	 *            the error it failed with, or null if it succeeded
+	 */
+	public void record(long micros, Throwable error) {
+		if (error == null) {
+			successes.record(micros);
+			return;
+		}
+		failures.record(micros);
+		String type = error.getClass().getSimpleName();
+		AtomicLong counter = failuresByType.get(type);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = failuresByType.putIfAbsent(type, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	@Override
+	public String getOperation() {
+		return operation.name();
+	}
+
+	@Override
+	public String getServer() {
+		return server;
+	}
+
+	@Override
+	public long getSuccessCount() {
+		return successes.getCount();
+	}
+
+	@Override
+	public long getFailureCount() {
+		return failures.getCount();
+	}
+
+	@Override
+	public Map<String, Long> getFailuresByType() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : failuresByType.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().get());
+		}
+		return result;
+	}
+
+	@Override
+	public double getMeanLatency() {
+		return successes.getMean();
+	}
+
+	@Override
+	public long getP50Latency() {
+		return successes.getPercentile(50);
+	}
+
+	@Override
+	public long getP95Latency() {
+		return successes.getPercentile(95);
+	}
+
+	@Override
+	public long getP99Latency() {
+		return successes.getPercentile(99);
+	}
+
+	@Override
+	public long getMaxLatency() {
+		return successes.getMax();
+	}
+
+	@Override
+	public double getMeanFailureLatency() {
+		return failures.getMean();
+	}
+
+	@Override
+	public long getMaxFailureLatency() {
+		return failures.getMax();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%s@%s[ok=%d, failed=%d, p50=%dus, p95=%dus, p99=%dus, max=%dus, failures=%s]",
+				operation, server, getSuccessCount(), getFailureCount(),
+				getP50Latency(), getP95Latency(), getP99Latency(),
+				getMaxLatency(), getFailuresByType());
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.util.Map;
+
+/**
+ * JMX view of the timings of one kind of LDAP operation against one server.
+ * Latencies are in microseconds.
+ */
+public interface LdapOperationStatsMXBean {
+
+	/**
+	 * @return the kind of operation
+	 */
+	String getOperation();
+
+	/**
+	 * @return the server the operation ran against
+	 */
+	String getServer();
+
+	/**
+	 * @return number of successful operations
+	 */
+	long getSuccessCount();
+
+	/**
+	 * @return number of failed operations
+	 */
+	long getFailureCount();
+
+	/**
+	 * @return number of failures by exception class name
+	 */
+	Map<String, Long> getFailuresByType();
+
+	/**
+	 * @return mean latency of successful operations
+	 */
+	double getMeanLatency();
+
+	/**
+	 * @return median latency of successful operations
+	 */
+	long getP50Latency();
+
+	/**
+	 * @return 95th percentile latency of successful operations
+	 */
+	long getP95Latency();
+
+	/**
+	 * @return 99th percentile latency of successful operations
+	 */
+	long getP99Latency();
+
+	/**
+	 * @return largest latency of a successful operation
+	 */
+	long getMaxLatency();
+
+	/**
+	 * @return mean latency of failed operations
+	 */
+	double getMeanFailureLatency();
+
+	/**
+	 * @return largest latency of a failed operation
+	 */
+	long getMaxFailureLatency();
+}
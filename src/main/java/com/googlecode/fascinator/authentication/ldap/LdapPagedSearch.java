@@ -0,0 +1,295 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the results of a search one page at a time using the Simple Paged
+ * Results control (RFC 2696), so that large result sets neither hit the
+ * server's size limit nor have to be held in memory at once. Servers that
+ * do not support paging return every result in a single page. Each result is
+ * returned as a map of attribute name to values, as by
+ * {@link LdapAuthenticationHandler#getAllAttrValues(String[], String)}.
+ *
+ * <p>
+ * The search holds a directory connection until every result has been read
+ * or {@link #close()} is called, so callers that may stop early must close
+ * it in a <code>finally</code> block. Closing before the last page abandons
+ * the search on the server, so that the connection can be reused without
+ * the server holding its paging state. If the search fails part way the
+ * iteration simply ends; {@link #getError()} tells it apart from the end of
+ * the results.
+ * </p>
+ */
+public class LdapPagedSearch implements Iterator<Map<String, List<String>>>, Closeable {
+
+	/** Logging */
+	private Logger log = LoggerFactory.getLogger(LdapPagedSearch.class);
+
+	/** Default number of entries requested per page */
+	public static final int DEFAULT_PAGE_SIZE = 500;
+
+	/**
+	 * Told once the search has finished with its connection
+	 */
+	public interface Completion {
+
+		/**
+		 * Called once, when the results are exhausted, the search fails or
+		 * it is closed
+		 *
+		 * @param error
+		 *            the error the search failed with, or null
+		 */
+		void completed(NamingException error);
+	}
+
+	private final LdapContext ctx;
+	private final String baseDn;
+	private final String filter;
+	private final SearchControls controls;
+	private final int pageSize;
+	private final Completion completion;
+
+	/** Results of the current page */
+	private NamingEnumeration<SearchResult> page;
+
+	/** Server cookie for the next page, null once the last page was asked for */
+	private byte[] cookie;
+
+	private Map<String, List<String>> next;
+	private String nextDn;
+
+	/** DN of the entry last returned by {@link #next()} */
+	private String dn;
+	private NamingException error;
+	private boolean closed = false;
+
+	/**
+	 * Starts a search and reads its first page
+	 *
+	 * @param ctx
+	 *            the context to search on, used exclusively until completion
+	 * @param baseDn
+	 *            where to search
+	 * @param filter
+	 *            the search filter
+	 * @param controls
+	 *            the search controls
+	 * @param pageSize
+	 *            number of entries requested per page
+	 * @param completion
+	 *            told when the context is no longer needed
+	 */
+	public LdapPagedSearch(LdapContext ctx, String baseDn, String filter,
+			SearchControls controls, int pageSize, Completion completion) {
+		this.ctx = ctx;
+		this.baseDn = baseDn;
+		this.filter = filter;
+		this.controls = controls;
+		this.pageSize = Math.max(1, pageSize);
+		this.completion = completion;
+		try {
+			fetchPage(null);
+		} catch (NamingException ne) {
+			fail(ne);
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next != null) {
+			return true;
+		}
+		if (closed) {
+			return false;
+		}
+		try {
+			while (!page.hasMore()) {
+				page.close();
+				cookie = responseCookie();
+				if (cookie == null || cookie.length == 0) {
+					close();
+					return false;
+				}
+				fetchPage(cookie);
+			}
+			SearchResult entry = page.next();
+			next = toMap(entry.getAttributes());
+			nextDn = entry.getNameInNamespace();
+			return true;
+		} catch (NamingException ne) {
+			fail(ne);
+			return false;
+		}
+	}
+
+	@Override
+	public Map<String, List<String>> next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Map<String, List<String>> result = next;
+		dn = nextDn;
+		next = null;
+		return result;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stops the search and releases its connection. Safe to call more than
+	 * once.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		next = null;
+		try {
+			if (page != null) {
+				page.close();
+			}
+		} catch (NamingException ne) {
+			log.debug("Error closing paged search", ne);
+		}
+		if (error == null) {
+			try {
+				abandon();
+			} catch (NamingException ne) {
+				error = ne;
+			}
+		}
+		try {
+			// The context is pooled, so it must not keep the paging control
+			ctx.setRequestControls(null);
+		} catch (NamingException ne) {
+			if (error == null) {
+				error = ne;
+			}
+		}
+		completion.completed(error);
+	}
+
+	/**
+	 * @return DN of the entry last returned by {@link #next()}, or null
+	 *         before the first
+	 */
+	public String getDn() {
+		return dn;
+	}
+
+	/**
+	 * @return the error the search failed with, or null if it has not failed
+	 */
+	public NamingException getError() {
+		return error;
+	}
+
+	private void fetchPage(byte[] pageCookie) throws NamingException {
+		try {
+			ctx.setRequestControls(new Control[] {
+					new PagedResultsControl(pageSize, pageCookie, Control.NONCRITICAL) });
+		} catch (IOException ioe) {
+			NamingException ne = new NamingException("Cannot encode paged results control");
+			ne.setRootCause(ioe);
+			throw ne;
+		}
+		page = ctx.search(baseDn, filter, controls);
+	}
+
+	/**
+	 * Tells the server no more pages are wanted, by asking for a page of no
+	 * entries with the last cookie it returned (RFC 2696). Does nothing once
+	 * the last page has been read.
+	 */
+	private void abandon() throws NamingException {
+		byte[] last = responseCookie();
+		if (last == null) {
+			// No response yet, so use the cookie the current page was asked with
+			last = cookie;
+		}
+		if (last == null || last.length == 0) {
+			return;
+		}
+		try {
+			ctx.setRequestControls(new Control[] {
+					new PagedResultsControl(0, last, Control.CRITICAL) });
+		} catch (IOException ioe) {
+			NamingException ne = new NamingException("Cannot encode paged results control");
+			ne.setRootCause(ioe);
+			throw ne;
+		}
+		ctx.search(baseDn, filter, controls).close();
+	}
+
+	private byte[] responseCookie() throws NamingException {
+		Control[] response = ctx.getResponseControls();
+		if (response != null) {
+			for (Control control : response) {
+				if (control instanceof PagedResultsResponseControl) {
+					return ((PagedResultsResponseControl) control).getCookie();
+				}
+			}
+		}
+		return null;
+	}
+
+	private void fail(NamingException ne) {
+		log.warn("Failed paged LDAP search, filter: " + filter, ne);
+		error = ne;
+		close();
+	}
+
+	private static Map<String, List<String>> toMap(Attributes entry) throws NamingException {
+		Map<String, List<String>> map = new HashMap<String, List<String>>();
+		NamingEnumeration<String> ids = entry.getIDs();
+		while (ids.hasMore()) {
+			String id = ids.next();
+			map.put(id, new ArrayList<String>(LdapAttributeDecoder.values(entry.get(id))));
+		}
+		return map;
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reloads cache entries in the background. Each key is refreshed at most
+ * once at a time, and at most a fixed number of refreshes run at once;
+ * requests beyond that are dropped, to be asked for again by a later read.
+ */
+public class LdapRefresher {
+
+	/** Logging */
+	private Logger log = LoggerFactory.getLogger(LdapRefresher.class);
+
+	/** Default time (ms) before expiry from which cached users are refreshed */
+	public static final int DEFAULT_REFRESH_AHEAD = 300000;
+
+	/** Default time (ms) past expiry a cached user is served while refreshed */
+	public static final int DEFAULT_MAX_STALENESS = 300000;
+
+	/** Default number of refreshes running at once */
+	public static final int DEFAULT_CONCURRENCY = 2;
+
+	/** Runs the refreshes */
+	private final LdapExecutor executor;
+
+	/** One permit per refresh that may run at once */
+	private final Semaphore permits;
+
+	/** Keys being refreshed */
+	private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private final AtomicLong completedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	/**
+	 * Creates a refresher
+	 *
+	 * @param executor
+	 *            runs the refreshes
+	 * @param concurrency
+	 *            number of refreshes running at once
+	 */
+	public LdapRefresher(LdapExecutor executor, int concurrency) {
+		this.executor = executor;
+		this.permits = new Semaphore(Math.max(1, concurrency));
+	}
+
+	/**
+	 * Starts a refresh unless one is already running for the key or too many
+	 * are running
+	 *
+	 * @param key
+	 *            what is refreshed
+	 * @param refresh
+	 *            reloads the entry
+	 * @return <code>true</code> if the refresh was started
+	 */
+	public boolean schedule(final String key, final Runnable refresh) {
+		if (!pending.add(key)) {
+			return false;
+		}
+		if (!permits.tryAcquire()) {
+			pending.remove(key);
+			droppedCount.incrementAndGet();
+			return false;
+		}
+		try {
+			executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					try {
+						refresh.run();
+						completedCount.incrementAndGet();
+					} catch (RuntimeException re) {
+						failedCount.incrementAndGet();
+						log.warn("Failed to refresh " + key, re);
+					} finally {
+						pending.remove(key);
+						permits.release();
+					}
+					return null;
+				}
+			}, 0);
+			return true;
+		} catch (RejectedExecutionException ree) {
+			pending.remove(key);
+			permits.release();
+			droppedCount.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * @return number of refreshes that completed
+	 */
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	/**
+	 * @return number of refreshes that failed with an unexpected error
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * @return number of refreshes not started because too many were running
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("LdapRefresher[running=%d, completed=%d, failed=%d, dropped=%d]",
+				pending.size(), getCompletedCount(), getFailedCount(), getDroppedCount());
+	}
+}
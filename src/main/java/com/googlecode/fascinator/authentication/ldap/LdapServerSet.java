@@ -0,0 +1,456 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import javax.naming.ldap.InitialLdapContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The LDAP servers available to the plugin. Each server keeps a moving
+ * average of its response time and a health flag. Operations are routed to
+ * the healthy server with the lowest average latency and fail over to the
+ * next one when a server cannot be reached. An optional background task
+ * probes every server, so that failed servers are brought back and latency
+ * figures stay current, and re-resolves DNS SRV records when a domain is
+ * configured.
+ */
+public class LdapServerSet {
+
+	/** Logging */
+	private Logger log = LoggerFactory.getLogger(LdapServerSet.class);
+
+	/** Default time (ms) between health checks, 0 for none */
+	public static final int DEFAULT_HEALTH_CHECK_INTERVAL = 30000;
+
+	/** Time (ms) after which a failed server is retried without a health check */
+	private static final long RETRY_INTERVAL = 30000;
+
+	/** Weight of the newest latency in the moving average */
+	private static final double ALPHA = 0.3;
+
+	/**
+	 * One LDAP server
+	 */
+	public static class Server {
+		private final String url;
+		private volatile double averageLatency = 0;
+		private volatile boolean healthy = true;
+		private volatile long failedAt = 0;
+		private final AtomicLong successCount = new AtomicLong();
+		private final AtomicLong failureCount = new AtomicLong();
+
+		private Server(String url) {
+			this.url = url;
+		}
+
+		/**
+		 * @return the server URL
+		 */
+		public String getUrl() {
+			return url;
+		}
+
+		/**
+		 * @return moving average response time in milliseconds
+		 */
+		public double getAverageLatency() {
+			return averageLatency;
+		}
+
+		/**
+		 * @return whether the server is currently considered reachable
+		 */
+		public boolean isHealthy() {
+			return healthy;
+		}
+
+		/**
+		 * @return number of operations that reached the server
+		 */
+		public long getSuccessCount() {
+			return successCount.get();
+		}
+
+		/**
+		 * @return number of operations that could not reach the server
+		 */
+		public long getFailureCount() {
+			return failureCount.get();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s[%s, %.1fms, ok=%d, failed=%d]", url,
+					healthy ? "up" : "down", averageLatency,
+					getSuccessCount(), getFailureCount());
+		}
+	}
+
+	/** Orders servers by health, then latency */
+	private static final Comparator<Server> PREFERENCE = new Comparator<Server>() {
+		@Override
+		public int compare(Server a, Server b) {
+			if (a.healthy != b.healthy) {
+				return a.healthy ? -1 : 1;
+			}
+			if (!a.healthy) {
+				return a.failedAt < b.failedAt ? -1 : (a.failedAt == b.failedAt ? 0 : 1);
+			}
+			return Double.compare(a.averageLatency, b.averageLatency);
+		}
+	};
+
+	/** Servers by URL, in configuration order */
+	private volatile Map<String, Server> servers = new LinkedHashMap<String, Server>();
+
+	/** Statically configured URLs */
+	private final List<String> configuredUrls;
+
+	/** Domain whose _ldap._tcp SRV records list further servers, if any */
+	private final String srvDomain;
+
+	/** Background health checks, if started */
+	private ScheduledExecutorService healthChecker;
+
+	/**
+	 * Creates a set of servers
+	 *
+	 * @param urls
+	 *            server URLs, in order of preference until latencies are
+	 *            known
+	 * @param srvDomain
+	 *            DNS domain to look up <code>_ldap._tcp</code> SRV records
+	 *            in, or null
+	 */
+	public LdapServerSet(List<String> urls, String srvDomain) {
+		this.configuredUrls = new ArrayList<String>(urls);
+		this.srvDomain = srvDomain;
+		refreshServers();
+		if (servers.isEmpty()) {
+			throw new IllegalArgumentException("No LDAP server configured");
+		}
+	}
+
+	/**
+	 * Splits a space separated list of URLs, the form JNDI accepts for
+	 * Context.PROVIDER_URL
+	 *
+	 * @param urls
+	 *            one or more URLs
+	 * @return the individual URLs
+	 */
+	public static List<String> parseUrls(String urls) {
+		List<String> result = new ArrayList<String>();
+		if (urls != null) {
+			for (String url : urls.trim().split("\\s+")) {
+				if (url.length() > 0) {
+					result.add(url);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Lists the servers in the order they should be tried: healthy servers
+	 * by increasing latency, then servers that failed long enough ago to be
+	 * retried, longest first.
+	 *
+	 * @return servers to try, never empty
+	 */
+	public List<Server> getServersToTry() {
+		List<Server> all = new ArrayList<Server>(servers.values());
+		Collections.sort(all, PREFERENCE);
+		List<Server> result = new ArrayList<Server>(all.size());
+		long retryBefore = System.currentTimeMillis() - RETRY_INTERVAL;
+		for (Server server : all) {
+			if (server.healthy || server.failedAt < retryBefore) {
+				result.add(server);
+			}
+		}
+		if (result.isEmpty()) {
+			// Everything failed recently; try the one that failed first
+			result.add(all.get(0));
+		}
+		return result;
+	}
+
+	/**
+	 * Whether a server is known and currently considered reachable
+	 *
+	 * @param server
+	 *            the server URL
+	 * @return <code>false</code> if the server failed or is no longer listed
+	 */
+	public boolean isHealthy(String server) {
+		Server s = servers.get(server);
+		return s != null && s.healthy;
+	}
+
+	/**
+	 * @return every known server
+	 */
+	public List<Server> getServers() {
+		return new ArrayList<Server>(servers.values());
+	}
+
+	/**
+	 * Records an operation that reached a server
+	 *
+	 * @param server
+	 *            the server URL
+	 * @param startNanos
+	 *            {@link System#nanoTime()} when the operation started
+	 */
+	public void recordSuccess(String server, long startNanos) {
+		Server s = servers.get(server);
+		if (s == null) {
+			return;
+		}
+		double millis = (System.nanoTime() - startNanos) / 1000000.0;
+		s.averageLatency = s.successCount.get() == 0 ? millis
+				: s.averageLatency * (1 - ALPHA) + millis * ALPHA;
+		s.successCount.incrementAndGet();
+		if (!s.healthy) {
+			s.healthy = true;
+			log.info("LDAP server is available again: " + server);
+		}
+	}
+
+	/**
+	 * Records an operation that failed. Only errors showing the server could
+	 * not be reached mark it unhealthy.
+	 *
+	 * @param server
+	 *            the server URL
+	 * @param error
+	 *            the error raised
+	 */
+	public void recordFailure(String server, NamingException error) {
+		Server s = servers.get(server);
+		if (s == null || !isUnreachable(error)) {
+			return;
+		}
+		s.failureCount.incrementAndGet();
+		s.failedAt = System.currentTimeMillis();
+		if (s.healthy) {
+			s.healthy = false;
+			log.warn("LDAP server marked unavailable: " + server + " (" + error + ")");
+		}
+	}
+
+	/**
+	 * Whether an error means the server could not be reached or stopped
+	 * answering, so another server should be tried
+	 *
+	 * @param error
+	 *            the error raised
+	 * @return <code>true</code> for connection failures and read timeouts,
+	 *         <code>false</code> when the call was turned away locally by an
+	 *         exhausted pool, a full bulkhead or an open circuit breaker
+	 */
+	public static boolean isUnreachable(NamingException error) {
+		if (error instanceof LdapConnectionPool.ExhaustedException
+				|| error instanceof LdapBulkhead.RejectedException
+				|| error instanceof LdapCircuitBreaker.OpenException) {
+			return false;
+		}
+		if (error instanceof CommunicationException
+				|| error instanceof ServiceUnavailableException) {
+			return true;
+		}
+		// JNDI reports com.sun.jndi.ldap.read.timeout with a plain NamingException
+		String message = error.getMessage();
+		return message != null && message.startsWith("LDAP response read timed out");
+	}
+
+	/**
+	 * Starts probing every server in the background
+	 *
+	 * @param env
+	 *            environment to bind with when probing; its provider URL is
+	 *            replaced by each server's
+	 * @param interval
+	 *            time (ms) between probes
+	 */
+	public synchronized void startHealthChecks(final Hashtable<String, String> env, long interval) {
+		if (healthChecker != null || interval <= 0) {
+			return;
+		}
+		healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ldap-health-check");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		healthChecker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refreshServers();
+					for (Server server : getServers()) {
+						probe(server, env);
+					}
+				} catch (RuntimeException re) {
+					log.warn("Error during LDAP health check", re);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the background health checks
+	 */
+	public synchronized void shutdown() {
+		if (healthChecker != null) {
+			healthChecker.shutdownNow();
+			healthChecker = null;
+		}
+	}
+
+	/**
+	 * Connects to a server and reads its root entry
+	 *
+	 * @param server
+	 * @param env
+	 */
+	private void probe(Server server, Hashtable<String, String> env) {
+		Hashtable<String, String> probeEnv = new Hashtable<String, String>(env);
+		probeEnv.put(Context.PROVIDER_URL, server.url);
+		long start = System.nanoTime();
+		try {
+			DirContext ctx = new InitialLdapContext(probeEnv, null);
+			try {
+				ctx.getAttributes("", new String[] { "1.1" });
+			} finally {
+				ctx.close();
+			}
+			recordSuccess(server.url, start);
+		} catch (NamingException ne) {
+			log.debug("LDAP health check failed for " + server.url, ne);
+			recordFailure(server.url, ne);
+		}
+	}
+
+	/**
+	 * Rebuilds the server list from the configured URLs and SRV records,
+	 * keeping the state of servers already known
+	 */
+	private void refreshServers() {
+		List<String> urls = new ArrayList<String>(configuredUrls);
+		if (srvDomain != null && srvDomain.length() > 0) {
+			for (String url : lookupSrv(srvDomain)) {
+				if (!urls.contains(url)) {
+					urls.add(url);
+				}
+			}
+		}
+		if (urls.isEmpty()) {
+			return;
+		}
+		Map<String, Server> current = servers;
+		Map<String, Server> updated = new LinkedHashMap<String, Server>();
+		for (String url : urls) {
+			Server server = current.get(url);
+			updated.put(url, server != null ? server : new Server(url));
+		}
+		servers = updated;
+	}
+
+	/**
+	 * Looks up LDAP servers advertised through DNS SRV records
+	 *
+	 * @param domain
+	 * @return server URLs ordered by priority, then weight
+	 */
+	private List<String> lookupSrv(String domain) {
+		List<String> result = new ArrayList<String>();
+		Hashtable<String, String> dnsEnv = new Hashtable<String, String>();
+		dnsEnv.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+		try {
+			DirContext dns = new InitialDirContext(dnsEnv);
+			try {
+				Attribute records = dns.getAttributes("_ldap._tcp." + domain,
+						new String[] { "SRV" }).get("SRV");
+				if (records == null) {
+					return result;
+				}
+				List<String[]> entries = new ArrayList<String[]>();
+				NamingEnumeration<?> values = records.getAll();
+				while (values.hasMore()) {
+					// priority weight port target
+					String[] parts = values.next().toString().trim().split("\\s+");
+					if (parts.length == 4) {
+						entries.add(parts);
+					}
+				}
+				Collections.sort(entries, new Comparator<String[]>() {
+					@Override
+					public int compare(String[] a, String[] b) {
+						int byPriority = Integer.valueOf(a[0]).compareTo(Integer.valueOf(b[0]));
+						return byPriority != 0 ? byPriority
+								: Integer.valueOf(b[1]).compareTo(Integer.valueOf(a[1]));
+					}
+				});
+				for (String[] entry : entries) {
+					String host = entry[3].endsWith(".")
+							? entry[3].substring(0, entry[3].length() - 1) : entry[3];
+					result.add("ldap://" + host + ":" + entry[2]);
+				}
+			} finally {
+				dns.close();
+			}
+		} catch (NamingException ne) {
+			log.warn("Failed to look up LDAP SRV records for " + domain, ne);
+		} catch (NumberFormatException nfe) {
+			log.warn("Invalid LDAP SRV record for " + domain, nfe);
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "LdapServerSet" + getServers();
+	}
+}
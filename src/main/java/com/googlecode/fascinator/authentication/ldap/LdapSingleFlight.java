@@ -0,0 +1,94 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent loads of the same key. The first caller for a key
+ * runs the load on its own thread; callers arriving while it is in flight
+ * wait for it and share its result instead of repeating the directory
+ * request. Nothing is kept once the load completes, so later callers start
+ * a fresh load.
+ *
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the result type
+ */
+public class LdapSingleFlight<K, V> {
+
+	private final ConcurrentHashMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	private final AtomicLong loadCount = new AtomicLong();
+	private final AtomicLong sharedCount = new AtomicLong();
+
+	/**
+	 * Runs a load, or joins the one already in flight for the key
+	 *
+	 * @param key
+	 *            what is being loaded
+	 * @param loader
+	 *            the load to run if none is in flight
+	 * @return the result of the load
+	 * @throws ExecutionException
+	 *             if the load failed, with its error as the cause
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for another caller's load
+	 */
+	public V execute(K key, Callable<V> loader) throws ExecutionException, InterruptedException {
+		FutureTask<V> task = new FutureTask<V>(loader);
+		FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+		if (existing != null) {
+			sharedCount.incrementAndGet();
+			return existing.get();
+		}
+		loadCount.incrementAndGet();
+		try {
+			task.run();
+		} finally {
+			inFlight.remove(key, task);
+		}
+		return task.get();
+	}
+
+	/**
+	 * @return number of loads run
+	 */
+	public long getLoadCount() {
+		return loadCount.get();
+	}
+
+	/**
+	 * @return number of callers that shared another caller's load
+	 */
+	public long getSharedCount() {
+		return sharedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("LdapSingleFlight[loads=%d, shared=%d, inFlight=%d]",
+				getLoadCount(), getSharedCount(), inFlight.size());
+	}
+}
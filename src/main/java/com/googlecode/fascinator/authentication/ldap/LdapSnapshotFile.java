@@ -0,0 +1,322 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Saves a {@link LdapUserIndex} to disk and maps it back into memory, so
+ * that a restarted node can answer user lookups straight away instead of
+ * waiting for the directory to be read again. A loaded snapshot is read in
+ * place from the mapped file: only the header is held on the heap, however
+ * many users it contains, and the operating system pages in what lookups
+ * touch.
+ *
+ * <p>
+ * The file, all integers big-endian and all strings as an int length
+ * followed by UTF-8 bytes, is laid out as
+ * </p>
+ * <ul>
+ * <li>a header: {@link #MAGIC}, {@link #VERSION}, the time the index was
+ * built (long), the number of indexed attributes and their names</li>
+ * <li>one record per user: the lower cased username, the DN and the value
+ * of each indexed attribute</li>
+ * <li>an open-addressed hash table, at most half full and probed linearly,
+ * whose slots hold the hash of a username and the offset of its record, or
+ * -1 if empty</li>
+ * <li>a trailer: the offset of the table (long), the number of slots and of
+ * users, and {@link #MAGIC} again, so a partly written file is rejected</li>
+ * </ul>
+ * <p>
+ * Files are written to a temporary file and then renamed over the old one,
+ * which an index already mapped from it keeps reading.
+ * </p>
+ */
+public class LdapSnapshotFile {
+
+	/** First and last four bytes of every snapshot */
+	public static final int MAGIC = 0x464C4458;
+
+	/** Version of the layout written, files of any other version are rejected */
+	public static final int VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int TRAILER_SIZE = 20;
+
+	private static final int SLOT_SIZE = 8;
+
+	/**
+	 * A user index read from a mapped snapshot
+	 */
+	private static class MappedUserIndex extends LdapUserIndex {
+
+		private final ByteBuffer buffer;
+		private final int attrCount;
+		private final int slotsOffset;
+		private final int slotCount;
+		private final int entryCount;
+
+		MappedUserIndex(String[] attrNames, long builtAt, ByteBuffer buffer,
+				int slotsOffset, int slotCount, int entryCount) {
+			super(attrNames, builtAt);
+			this.buffer = buffer;
+			this.attrCount = attrNames.length;
+			this.slotsOffset = slotsOffset;
+			this.slotCount = slotCount;
+			this.entryCount = entryCount;
+		}
+
+		@Override
+		protected String[] find(String key) {
+			byte[] keyBytes = key.getBytes(UTF8);
+			int hash = hash(key);
+			int mask = slotCount - 1;
+			for (int i = hash & mask, probes = 0; probes < slotCount; i = (i + 1) & mask, probes++) {
+				int slot = slotsOffset + i * SLOT_SIZE;
+				int offset = buffer.getInt(slot + 4);
+				if (offset < 0) {
+					return null;
+				}
+				if (buffer.getInt(slot) == hash && sameBytes(offset, keyBytes)) {
+					return readRecord(offset);
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public int size() {
+			return entryCount;
+		}
+
+		@Override
+		protected Collection<String> usernames() {
+			List<String> usernames = new ArrayList<String>(entryCount);
+			for (int i = 0; i < slotCount; i++) {
+				int offset = buffer.getInt(slotsOffset + i * SLOT_SIZE + 4);
+				if (offset >= 0) {
+					usernames.add(readString(offset));
+				}
+			}
+			return usernames;
+		}
+
+		private boolean sameBytes(int offset, byte[] bytes) {
+			if (buffer.getInt(offset) != bytes.length) {
+				return false;
+			}
+			for (int i = 0; i < bytes.length; i++) {
+				if (buffer.get(offset + 4 + i) != bytes[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private String[] readRecord(int offset) {
+			String[] result = new String[attrCount + 1];
+			// Skip the username
+			int position = offset + 4 + buffer.getInt(offset);
+			for (int i = 0; i <= attrCount; i++) {
+				result[i] = readString(position);
+				position += 4 + buffer.getInt(position);
+			}
+			return result;
+		}
+
+		private String readString(int offset) {
+			byte[] bytes = new byte[buffer.getInt(offset)];
+			ByteBuffer view = buffer.duplicate();
+			view.position(offset + 4);
+			view.get(bytes);
+			return new String(bytes, UTF8);
+		}
+	}
+
+	private LdapSnapshotFile() {
+	}
+
+	/**
+	 * Writes a snapshot of a user index, replacing the file if it exists
+	 *
+	 * @param file
+	 *            where to write
+	 * @param index
+	 *            the index
+	 * @throws IOException
+	 *             if the file could not be written
+	 */
+	public static void write(File file, LdapUserIndex index) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		File temp = new File(dir, file.getName() + ".tmp");
+		List<String> attrNames = index.getAttributeNames();
+		Collection<String> usernames = index.usernames();
+		int slotCount = Integer.highestOneBit(Math.max(1, usernames.size()) * 2 - 1) << 1;
+		int[] slotHashes = new int[slotCount];
+		int[] slotOffsets = new int[slotCount];
+		Arrays.fill(slotOffsets, -1);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+		int entryCount = 0;
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(index.getBuiltAt());
+			out.writeInt(attrNames.size());
+			for (String attrName : attrNames) {
+				writeString(out, attrName);
+			}
+			for (String username : usernames) {
+				String[] entry = index.find(username);
+				if (entry == null) {
+					continue;
+				}
+				int offset = out.size();
+				if (offset < 0) {
+					throw new IOException("Snapshot larger than 2GB");
+				}
+				writeString(out, username);
+				for (String value : entry) {
+					writeString(out, value == null ? "" : value);
+				}
+				int hash = hash(username);
+				int i = hash & (slotCount - 1);
+				while (slotOffsets[i] >= 0) {
+					i = (i + 1) & (slotCount - 1);
+				}
+				slotHashes[i] = hash;
+				slotOffsets[i] = offset;
+				entryCount++;
+			}
+			long slotsOffset = out.size();
+			for (int i = 0; i < slotCount; i++) {
+				out.writeInt(slotHashes[i]);
+				out.writeInt(slotOffsets[i]);
+			}
+			if (out.size() < 0) {
+				throw new IOException("Snapshot larger than 2GB");
+			}
+			out.writeLong(slotsOffset);
+			out.writeInt(slotCount);
+			out.writeInt(entryCount);
+			out.writeInt(MAGIC);
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException amnse) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Maps a snapshot into memory
+	 *
+	 * @param file
+	 *            the snapshot
+	 * @return the user index it holds
+	 * @throws IOException
+	 *             if the file could not be read, is of another version or
+	 *             is incomplete
+	 */
+	public static LdapUserIndex load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer buffer;
+		try {
+			long length = raf.length();
+			if (length > Integer.MAX_VALUE || length < 20 + TRAILER_SIZE) {
+				throw new IOException("Not a user snapshot: " + file);
+			}
+			// The mapping stays valid once the file is closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+		} finally {
+			raf.close();
+		}
+		int length = buffer.capacity();
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(length - 4) != MAGIC) {
+			throw new IOException("Not a complete user snapshot: " + file);
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException("Unsupported user snapshot version " + buffer.getInt(4) + ": " + file);
+		}
+		long builtAt = buffer.getLong(8);
+		int attrCount = buffer.getInt(16);
+		String[] attrNames = new String[attrCount];
+		int position = 20;
+		for (int i = 0; i < attrCount; i++) {
+			byte[] bytes = new byte[buffer.getInt(position)];
+			ByteBuffer view = buffer.duplicate();
+			view.position(position + 4);
+			view.get(bytes);
+			attrNames[i] = new String(bytes, UTF8);
+			position += 4 + bytes.length;
+		}
+		int trailer = length - TRAILER_SIZE;
+		long slotsOffset = buffer.getLong(trailer);
+		int slotCount = buffer.getInt(trailer + 8);
+		int entryCount = buffer.getInt(trailer + 12);
+		if (slotCount <= 0 || Integer.bitCount(slotCount) != 1 || slotsOffset < position
+				|| slotsOffset + (long) slotCount * SLOT_SIZE != trailer) {
+			throw new IOException("Corrupt user snapshot: " + file);
+		}
+		return new MappedUserIndex(attrNames, builtAt, buffer, (int) slotsOffset, slotCount, entryCount);
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * @param key
+	 *            a lower cased username
+	 * @return the hash of its slot, spread so that similar usernames land
+	 *         apart
+	 */
+	private static int hash(String key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return h;
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An immutable in-memory snapshot of the users in the directory, holding
+ * each user's DN and a fixed set of attribute values keyed by username, so
+ * that user lookups and DN resolution can be answered without a search.
+ * Usernames are compared case-insensitively.
+ *
+ * <p>
+ * Each user takes one small object: the values of the indexed attributes
+ * are held in an array in the order of {@link #getAttributeNames()}, and
+ * equal values, such as department names, are stored once.
+ * </p>
+ */
+public class LdapUserIndex {
+
+	/** Default time (ms) between rebuilds of the index */
+	public static final int DEFAULT_REFRESH_INTERVAL = 3600000;
+
+	/** An index that has not been built, containing no users */
+	public static final LdapUserIndex EMPTY = new LdapUserIndex(new String[0],
+			Collections.<String, Entry> emptyMap(), 0);
+
+	/**
+	 * A user's DN and attribute values
+	 */
+	private static class Entry {
+		private final String dn;
+		private final String[] values;
+
+		Entry(String dn, String[] values) {
+			this.dn = dn;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * Collects the users read from the directory
+	 */
+	public static class Builder {
+
+		private final String[] attrNames;
+
+		private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+		/** Values seen so far, so that repeated values share one string */
+		private final Map<String, String> distinctValues = new HashMap<String, String>();
+
+		/**
+		 * @param attrNames
+		 *            the attributes to index for every user
+		 */
+		public Builder(Collection<String> attrNames) {
+			this.attrNames = attrNames.toArray(new String[attrNames.size()]);
+		}
+
+		/**
+		 * Adds a user, replacing any added earlier with the same username
+		 *
+		 * @param username
+		 *            the user's username
+		 * @param dn
+		 *            the user's DN
+		 * @param values
+		 *            values of the indexed attributes keyed by name, multiple
+		 *            values already joined; missing attributes are blank
+		 * @return this builder
+		 */
+		public Builder add(String username, String dn, Map<String, String> values) {
+			String[] entryValues = new String[attrNames.length];
+			for (int i = 0; i < attrNames.length; i++) {
+				String value = values.get(attrNames[i]);
+				entryValues[i] = share(value == null ? "" : value);
+			}
+			entries.put(keyOf(username), new Entry(dn, entryValues));
+			return this;
+		}
+
+		/**
+		 * @return the index of the users added so far
+		 */
+		public LdapUserIndex build() {
+			return new LdapUserIndex(attrNames, new HashMap<String, Entry>(entries),
+					System.currentTimeMillis());
+		}
+
+		private String share(String value) {
+			String shared = distinctValues.get(value);
+			if (shared == null) {
+				distinctValues.put(value, value);
+				shared = value;
+			}
+			return shared;
+		}
+	}
+
+	private final String[] attrNames;
+
+	/** Position of each attribute in an entry's values, by lower cased name */
+	private final Map<String, Integer> positions = new HashMap<String, Integer>();
+
+	private final Map<String, Entry> entries;
+
+	private final long builtAt;
+
+	/**
+	 * For indexes that hold their users elsewhere and override
+	 * {@link #find(String)}, {@link #size()} and {@link #usernames()}
+	 *
+	 * @param attrNames
+	 *            the indexed attributes
+	 * @param builtAt
+	 *            when the index was built
+	 */
+	protected LdapUserIndex(String[] attrNames, long builtAt) {
+		this(attrNames, Collections.<String, Entry> emptyMap(), builtAt);
+	}
+
+	private LdapUserIndex(String[] attrNames, Map<String, Entry> entries, long builtAt) {
+		this.attrNames = attrNames;
+		this.entries = entries;
+		this.builtAt = builtAt;
+		for (int i = 0; i < attrNames.length; i++) {
+			positions.put(attrNames[i].toLowerCase(Locale.ENGLISH), i);
+		}
+	}
+
+	/**
+	 * @param username
+	 *            a username
+	 * @return the user's DN, or null if the user is not in the index
+	 */
+	public String getDn(String username) {
+		String[] entry = find(keyOf(username));
+		return entry == null ? null : entry[0];
+	}
+
+	/**
+	 * @param attrNames
+	 *            names of attributes
+	 * @return whether every one of the attributes is indexed
+	 */
+	public boolean covers(Collection<String> attrNames) {
+		for (String attrName : attrNames) {
+			if (!positions.containsKey(attrName.toLowerCase(Locale.ENGLISH))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the values of some of a user's attributes
+	 *
+	 * @param username
+	 *            a username
+	 * @param attrNames
+	 *            the attributes wanted, all of which must be indexed
+	 * @return the values keyed by attribute name, or null if the user is not
+	 *         in the index or an attribute is not indexed
+	 */
+	public Map<String, String> getValues(String username, Collection<String> attrNames) {
+		String[] entry = find(keyOf(username));
+		if (entry == null) {
+			return null;
+		}
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for (String attrName : attrNames) {
+			Integer position = positions.get(attrName.toLowerCase(Locale.ENGLISH));
+			if (position == null) {
+				return null;
+			}
+			values.put(attrName, entry[position + 1]);
+		}
+		return values;
+	}
+
+	/**
+	 * Finds a user
+	 *
+	 * @param key
+	 *            the lower cased username
+	 * @return the user's DN followed by the values of the indexed attributes
+	 *         in order, or null if the user is not in the index
+	 */
+	protected String[] find(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		String[] result = new String[entry.values.length + 1];
+		result[0] = entry.dn;
+		System.arraycopy(entry.values, 0, result, 1, entry.values.length);
+		return result;
+	}
+
+	/**
+	 * @return the lower cased usernames of every user indexed
+	 */
+	protected Collection<String> usernames() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	/**
+	 * @return the indexed attributes
+	 */
+	public List<String> getAttributeNames() {
+		List<String> names = new ArrayList<String>();
+		Collections.addAll(names, attrNames);
+		return names;
+	}
+
+	/**
+	 * @return whether the index has been built from the directory
+	 */
+	public boolean isLoaded() {
+		return builtAt > 0;
+	}
+
+	/**
+	 * @return when the index was built, 0 if never
+	 */
+	public long getBuiltAt() {
+		return builtAt;
+	}
+
+	/**
+	 * @return number of users indexed
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	static String keyOf(String username) {
+		return username.toLowerCase(Locale.ENGLISH);
+	}
+
+	@Override
+	public String toString() {
+		return "LdapUserIndex[users=" + size() + ", attributes=" + attrNames.length
+				+ ", builtAt=" + builtAt + "]";
+	}
+}
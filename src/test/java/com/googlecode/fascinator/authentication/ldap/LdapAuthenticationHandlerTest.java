@@ -0,0 +1,341 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.naming.directory.BasicAttributes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the batched user lookup of {@link LdapAuthenticationHandler}
+ * against {@link StubLdapContextFactory}
+ */
+public class LdapAuthenticationHandlerTest {
+
+	private static final String BASE_DN = "ou=people,dc=example,dc=org";
+
+	private LdapAuthenticationHandler handler;
+
+	@Before
+	public void setUp() {
+		StubLdapContextFactory.reset();
+		handler = new LdapAuthenticationHandler("ldap://stub:389", BASE_DN,
+				StubLdapContextFactory.SYSTEM_PRINCIPAL,
+				StubLdapContextFactory.SYSTEM_CREDENTIALS, "objectClass", "uid");
+		handler.setContextFactory(StubLdapContextFactory.class.getName());
+	}
+
+	@After
+	public void tearDown() {
+		handler.shutdown();
+	}
+
+	@Test
+	public void getUsersSearchesOncePerChunk() {
+		List<String> usernames = addUsers(120);
+		handler.setBatchSize(50);
+
+		Map<String, Map<String, String>> users = handler.getUsers(usernames, Arrays.asList("cn", "mail"));
+
+		assertEquals(120, users.size());
+		assertEquals("User 7", users.get("user7").get("cn"));
+		assertEquals("", users.get("user7").get("mail"));
+		List<String> filters = StubLdapContextFactory.getFilters();
+		assertEquals(3, filters.size());
+		int terms = 0;
+		for (String filter : filters) {
+			assertTrue(filter, filter.startsWith("(|(uid="));
+			terms += filter.split("\\(uid=").length - 1;
+		}
+		assertEquals(120, terms);
+	}
+
+	@Test
+	public void getUsersSearchesOncePerUserWithoutBatching() {
+		List<String> usernames = addUsers(20);
+		handler.setBatchSize(1);
+
+		assertEquals(20, handler.getUsers(usernames, Collections.singletonList("cn")).size());
+		assertEquals(20, StubLdapContextFactory.getSearchCount());
+	}
+
+	@Test
+	public void getUsersEscapesFilterValues() {
+		StubLdapContextFactory.addEntry("uid=a*b(c)\\d," + BASE_DN, "uid", "a*b(c)\\d", "cn", "Special");
+		StubLdapContextFactory.addEntry("uid=axb(c)\\d," + BASE_DN, "uid", "axb(c)\\d", "cn", "Other");
+
+		Map<String, Map<String, String>> users = handler.getUsers(
+				Arrays.asList("a*b(c)\\d", "*"), Collections.singletonList("cn"));
+
+		assertEquals(1, users.size());
+		assertEquals("Special", users.get("a*b(c)\\d").get("cn"));
+		assertEquals(1, StubLdapContextFactory.getSearchCount());
+		String filter = StubLdapContextFactory.getFilters().get(0);
+		assertEquals("(|(uid=a\\2ab\\28c\\29\\5cd)(uid=\\2a))", filter);
+		assertFalse(filter, filter.contains("(uid=*)"));
+	}
+
+	@Test
+	public void templateDnEscapesUsername() {
+		StubLdapContextFactory.addEntry("uid=a\\,b\\+c," + BASE_DN, "uid", "a,b+c", "userPassword", "pw");
+		handler.setBindStrategy(LdapBindStrategy.Mode.TEMPLATE_FIRST);
+
+		assertTrue(handler.authenticate("a,b+c", "pw"));
+		assertEquals(0, StubLdapContextFactory.getSearchCount());
+	}
+
+	@Test
+	public void dnSearchEscapesUsername() {
+		StubLdapContextFactory.addEntry("uid=x(y)*,ou=staff," + BASE_DN, "uid", "x(y)*", "userPassword", "pw");
+		StubLdapContextFactory.addEntry("uid=x(y)z,ou=staff," + BASE_DN, "uid", "x(y)z", "userPassword", "other");
+		handler.setBindStrategy(LdapBindStrategy.Mode.SEARCH_FIRST);
+
+		assertTrue(handler.authenticate("x(y)*", "pw"));
+		assertEquals("uid=x\\28y\\29\\2a", StubLdapContextFactory.getFilters().get(0));
+		// A wildcard must not match another user's entry
+		assertFalse(handler.authenticate("x(y*", "other"));
+		assertFalse(handler.authenticate("*", "other"));
+	}
+
+	@Test
+	public void freeFormQueryRunsOutsideThePool() throws Exception {
+		addUsers(5);
+		LdapPagedSearch search = handler.iterateAllAttrValues(new String[] { "person" }, "(objectClass=%s)", null);
+		int count = 0;
+		try {
+			assertEquals(0, handler.getConnectionPool().getActiveCount());
+			assertEquals(Integer.valueOf(1), handler.getBulkhead().getAvailablePermits().get("BULK"));
+			while (search.hasNext()) {
+				search.next();
+				count++;
+			}
+		} finally {
+			search.close();
+		}
+		assertEquals(5, count);
+		assertEquals(Integer.valueOf(2), handler.getBulkhead().getAvailablePermits().get("BULK"));
+		// Every context opened is either closed or idle in the pool
+		assertEquals(StubLdapContextFactory.getOpenedCount() - handler.getConnectionPool().getIdleCount(),
+				StubLdapContextFactory.getClosedCount());
+	}
+
+	@Test
+	public void searchStoppedEarlyIsAbandoned() {
+		addUsers(10);
+		handler.setPageSize(3);
+
+		assertEquals(10, handler.searchUsers("", Collections.singletonList("cn"), 0).size());
+		assertEquals(4, StubLdapContextFactory.getSearchCount());
+		assertEquals(0, StubLdapContextFactory.getAbandonedCount());
+
+		assertEquals(4, handler.searchUsers("user", Collections.singletonList("cn"), 4).size());
+		assertEquals(1, StubLdapContextFactory.getAbandonedCount());
+	}
+
+	@Test
+	public void groupIndexRebuildNeedsNoBulkPermit() throws Exception {
+		StubLdapContextFactory.addEntry("cn=staff,ou=groups,dc=example,dc=org", "objectClass", "groupOfNames",
+				"member", "uid=user0," + BASE_DN);
+		addUsers(1);
+		handler.configureGroups("ou=groups,dc=example,dc=org", null, null, null, 0);
+		handler.getBulkhead().configure(LdapBulkhead.Priority.BULK, 1, 0);
+		LdapPagedSearch held = handler.iterateAllAttrValues(new String[] { "person" }, "(objectClass=%s)", null);
+		try {
+			handler.refreshGroupIndex();
+		} finally {
+			held.close();
+		}
+		assertTrue(handler.getGroupIndex().isMember("uid=user0," + BASE_DN, "cn=staff,ou=groups,dc=example,dc=org"));
+		assertEquals(0, handler.getConnectionPool().getActiveCount());
+	}
+
+	@Test
+	public void groupIndexRebuildIgnoresQueryLimits() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			StubLdapContextFactory.addEntry("cn=group" + i + ",ou=groups,dc=example,dc=org",
+					"objectClass", "groupOfNames", "member", "uid=user" + i + "," + BASE_DN);
+		}
+		addUsers(3);
+		handler.setSearchLimits(LdapAuthenticationHandler.SearchType.QUERY, 1, 1000);
+		handler.configureGroups("ou=groups,dc=example,dc=org", null, null, null, 0);
+
+		handler.refreshGroupIndex();
+
+		assertTrue(handler.getGroupIndex().isMember("uid=user2," + BASE_DN, "cn=group2,ou=groups,dc=example,dc=org"));
+	}
+
+	@Test
+	public void userIndexRebuildNeedsNoBulkPermit() throws Exception {
+		addUsers(3);
+		handler.configureUserIndex(Collections.singletonList("cn"), 0);
+		handler.getBulkhead().configure(LdapBulkhead.Priority.BULK, 1, 0);
+		LdapPagedSearch held = handler.iterateAllAttrValues(new String[] { "person" }, "(objectClass=%s)", null);
+		try {
+			handler.refreshUserIndex();
+		} finally {
+			held.close();
+		}
+		assertEquals("uid=user2," + BASE_DN, handler.getUserIndex().getDn("user2"));
+		assertEquals(0, handler.getConnectionPool().getActiveCount());
+	}
+
+	@Test
+	public void userIndexRebuildIgnoresQueryLimits() throws Exception {
+		addUsers(5);
+		handler.setSearchLimits(LdapAuthenticationHandler.SearchType.QUERY, 2, 1000);
+		handler.configureUserIndex(Collections.singletonList("cn"), 0);
+
+		handler.refreshUserIndex();
+
+		assertEquals("uid=user4," + BASE_DN, handler.getUserIndex().getDn("user4"));
+		assertEquals(5, handler.getUserIndex().size());
+	}
+
+	@Test
+	public void onlyUserEntryChangesAreReported() {
+		final List<String> changed = new ArrayList<String>();
+		LdapAuthenticationHandler.UserChangeListener listener = new LdapAuthenticationHandler.UserChangeListener() {
+			@Override
+			public void userChanged(String username) {
+				changed.add(username);
+			}
+		};
+
+		handler.onEntryChanged("cn=staff,ou=groups,dc=example,dc=org",
+				new BasicAttributes("member", "uid=user0," + BASE_DN, true), listener);
+		handler.onEntryChanged("uid=user0," + BASE_DN, new BasicAttributes("uid", "user0", true), listener);
+
+		assertEquals(Collections.singletonList("user0"), changed);
+	}
+
+	@Test(timeout = 10000)
+	public void concurrentLookupsDifferingInCaseShareOneSearch() throws Exception {
+		addUsers(1);
+		StubLdapContextFactory.setSearchLatency(300);
+		List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		for (final String username : Arrays.asList("user0", "USER0", "User0")) {
+			results.add(executor.submit(new Callable<List<String>>() {
+				@Override
+				public List<String> call() {
+					return handler.getRoles(username);
+				}
+			}));
+		}
+		for (Future<List<String>> result : results) {
+			result.get();
+		}
+		executor.shutdown();
+		assertEquals(1, StubLdapContextFactory.getSearchCount());
+	}
+
+	@Test(timeout = 30000)
+	public void concurrentLoginsNeverShareCredentials() throws Exception {
+		final int threads = 8;
+		final int attempts = 40;
+		for (int i = 0; i < threads; i++) {
+			StubLdapContextFactory.addEntry("uid=user" + i + "," + BASE_DN, "uid", "user" + i,
+					"cn", "User " + i, "userPassword", "pw-" + i);
+		}
+		StubLdapContextFactory.setSearchLatency(1);
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < threads; i++) {
+			final int user = i;
+			results.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					start.await();
+					int succeeded = 0;
+					for (int attempt = 0; attempt < attempts; attempt++) {
+						// Every third attempt uses a wrong password
+						boolean right = attempt % 3 != 0;
+						Map<String, String> values = handler.authenticateAndFetch("user" + user,
+								(right ? "pw-" : "wrong-") + user, Arrays.asList("uid", "cn"));
+						if (right) {
+							assertEquals("user" + user, values.get("uid"));
+							assertEquals("User " + user, values.get("cn"));
+							succeeded++;
+						} else {
+							assertNull(values);
+						}
+					}
+					return succeeded;
+				}
+			}));
+		}
+		start.countDown();
+		int succeeded = 0;
+		for (Future<Integer> result : results) {
+			succeeded += result.get();
+		}
+		executor.shutdown();
+
+		assertEquals(threads * (attempts - (attempts + 2) / 3), succeeded);
+		int userBinds = 0;
+		for (String[] bind : StubLdapContextFactory.getBinds()) {
+			if (bind[0].equals(StubLdapContextFactory.SYSTEM_PRINCIPAL)) {
+				assertEquals(StubLdapContextFactory.SYSTEM_CREDENTIALS, bind[1]);
+				continue;
+			}
+			// Each bind carries the DN and one of the passwords of the same user
+			String user = bind[0].substring("uid=user".length(), bind[0].indexOf(','));
+			assertTrue(bind[0] + " " + bind[1], bind[1].equals("pw-" + user) || bind[1].equals("wrong-" + user));
+			userBinds++;
+		}
+		assertTrue(userBinds >= threads * attempts);
+	}
+
+	/**
+	 * Adds users named user0, user1, ... to the directory
+	 *
+	 * @param count
+	 *            number of users
+	 * @return their usernames
+	 */
+	private static List<String> addUsers(int count) {
+		List<String> usernames = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			String username = "user" + i;
+			StubLdapContextFactory.addEntry("uid=" + username + "," + BASE_DN,
+					"uid", username, "cn", "User " + i, "objectClass", "person");
+			usernames.add(username);
+		}
+		return usernames;
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures throughput, latency and allocation of the hot paths of
+ * {@link LdapAuthenticationHandler}, and of {@link LDAPAuthentication} with
+ * its user cache, single-flight lookups and refresh-ahead in front, at 1 to
+ * N threads, against {@link StubLdapContextFactory} seeded with a synthetic
+ * directory. Every search of the stub can be given a fixed latency to stand
+ * in for the network round trip.
+ *
+ * <p>
+ * This is not a unit test; run it with
+ * <code>mvn -Pbenchmark verify</code> or directly:
+ * </p>
+ *
+ * <pre>
+ * java LdapBenchmark [users [threads [seconds [latencyMs]]]]
+ * </pre>
+ *
+ * <p>
+ * The defaults are 10000 users, up to 8 threads, 5 seconds per run and no
+ * latency. Allocation is only reported on JVMs that count allocated bytes
+ * per thread.
+ * </p>
+ */
+public class LdapBenchmark {
+
+	private static final String BASE_DN = "ou=people,dc=example,dc=org";
+
+	/** Users per getUsers() call */
+	private static final int LOOKUP_BATCH = 50;
+
+	/**
+	 * One benchmarked call
+	 */
+	private interface Operation {
+		/**
+		 * @param random
+		 *            source of the user to work on, one per thread
+		 */
+		void run(Random random) throws Exception;
+	}
+
+	private final int users;
+	private final long seconds;
+
+	private LdapBenchmark(int users, long seconds) {
+		this.users = users;
+		this.seconds = seconds;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int users = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		long seconds = args.length > 2 ? Long.parseLong(args[2]) : 5;
+		long latency = args.length > 3 ? Long.parseLong(args[3]) : 0;
+
+		StubLdapContextFactory.reset();
+		for (int i = 0; i < users; i++) {
+			StubLdapContextFactory.addEntry("uid=user" + i + "," + BASE_DN, "uid", "user" + i,
+					"cn", "User " + i, "mail", "user" + i + "@example.org",
+					"userPassword", "password" + i, "objectClass", "person",
+					"objectClass", i % 10 == 0 ? "staff" : "student");
+		}
+		StubLdapContextFactory.setSearchLatency(latency);
+		System.out.println(String.format("%d users, %dms search latency", users, latency));
+
+		final LdapAuthenticationHandler handler = new LdapAuthenticationHandler("ldap://stub:389", BASE_DN,
+				StubLdapContextFactory.SYSTEM_PRINCIPAL,
+				StubLdapContextFactory.SYSTEM_CREDENTIALS, "objectClass", "uid");
+		handler.setContextFactory(StubLdapContextFactory.class.getName());
+		LDAPAuthentication auth = new LDAPAuthentication();
+		auth.init(StubLdapContextFactory.pluginConfig(BASE_DN));
+		try {
+			new LdapBenchmark(users, seconds).runAll(handler, auth, maxThreads);
+		} finally {
+			auth.shutdown();
+			handler.shutdown();
+		}
+	}
+
+	private void runAll(final LdapAuthenticationHandler handler, final LDAPAuthentication auth, int maxThreads)
+			throws Exception {
+		Map<String, Operation> operations = new LinkedHashMap<String, Operation>();
+		operations.put("authenticate", new Operation() {
+			@Override
+			public void run(Random random) {
+				int i = random.nextInt(users);
+				handler.authenticate("user" + i, "password" + i);
+			}
+		});
+		operations.put("getDN", new Operation() {
+			@Override
+			public void run(Random random) {
+				handler.getDN("user" + random.nextInt(users));
+			}
+		});
+		operations.put("getAttr", new Operation() {
+			@Override
+			public void run(Random random) {
+				handler.getAttr("user" + random.nextInt(users), "cn");
+			}
+		});
+		operations.put("getAllAttrs", new Operation() {
+			@Override
+			public void run(Random random) {
+				handler.getAllAttrs("user" + random.nextInt(users), "objectClass");
+			}
+		});
+		operations.put("getRoles", new Operation() {
+			@Override
+			public void run(Random random) {
+				handler.getRoles("user" + random.nextInt(users));
+			}
+		});
+		operations.put("getAllAttrValues", new Operation() {
+			@Override
+			public void run(Random random) {
+				handler.getAllAttrValues(new String[] { "user" + random.nextInt(users) }, "(uid=%s)");
+			}
+		});
+		operations.put("getUsers batched", new Operation() {
+			@Override
+			public void run(Random random) {
+				handler.setBatchSize(LOOKUP_BATCH);
+				handler.getUsers(randomUsers(random), Arrays.asList("cn", "mail"));
+			}
+		});
+		operations.put("getUsers per user", new Operation() {
+			@Override
+			public void run(Random random) {
+				handler.setBatchSize(1);
+				handler.getUsers(randomUsers(random), Arrays.asList("cn", "mail"));
+			}
+		});
+
+		operations.put("logIn", new Operation() {
+			@Override
+			public void run(Random random) throws Exception {
+				int i = random.nextInt(users);
+				auth.logIn("user" + i, "password" + i);
+			}
+		});
+		operations.put("getUser", new Operation() {
+			@Override
+			public void run(Random random) throws Exception {
+				auth.getUser("user" + random.nextInt(users));
+			}
+		});
+
+		System.out.println(String.format("%-20s %7s %12s %10s %10s %12s %10s",
+				"operation", "threads", "ops/s", "mean(us)", "p99(us)", "bytes/op", "searches"));
+		for (Map.Entry<String, Operation> operation : operations.entrySet()) {
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+				// The first run warms up the JIT and the caches
+				measure(operation.getValue(), threads, Math.max(1, seconds / 2));
+				String result = measure(operation.getValue(), threads, seconds);
+				System.out.println(String.format("%-20s %7d %s", operation.getKey(), threads, result));
+			}
+		}
+	}
+
+	/**
+	 * @param random
+	 * @return {@link #LOOKUP_BATCH} distinct usernames, some of which are
+	 *         not in the directory
+	 */
+	private List<String> randomUsers(Random random) {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < LOOKUP_BATCH; i++) {
+			names.add("user" + random.nextInt(users + users / 10));
+		}
+		return names;
+	}
+
+	/**
+	 * Runs an operation from several threads for a while
+	 *
+	 * @return the formatted results
+	 */
+	private String measure(final Operation operation, int threads, long runSeconds) throws Exception {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong allocated = new AtomicLong();
+		final long end = System.nanoTime() + runSeconds * 1000000000L;
+		final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		int searches = StubLdapContextFactory.getSearchCount();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final long seed = t;
+			results.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					Random random = new Random(seed);
+					long before = allocatedBytes(threadBean);
+					long now;
+					do {
+						long opStart = System.nanoTime();
+						operation.run(random);
+						now = System.nanoTime();
+						latency.record((now - opStart) / 1000);
+					} while (now < end);
+					allocated.addAndGet(allocatedBytes(threadBean) - before);
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> result : results) {
+			result.get();
+		}
+		long elapsed = System.nanoTime() - start;
+		pool.shutdown();
+
+		long ops = latency.getCount();
+		return String.format("%12.0f %10.1f %10d %12s %10.2f",
+				ops * 1e9 / elapsed, latency.getMean(), latency.getPercentile(99),
+				allocationCounted(threadBean) ? String.valueOf(allocated.get() / ops) : "n/a",
+				(double) (StubLdapContextFactory.getSearchCount() - searches) / ops);
+	}
+
+	/**
+	 * @return whether the JVM counts the bytes each thread allocates
+	 */
+	private static boolean allocationCounted(ThreadMXBean threadBean) {
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) threadBean;
+			return sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled();
+		}
+		return false;
+	}
+
+	/**
+	 * @return bytes allocated so far by the current thread, 0 if the JVM
+	 *         does not count them
+	 */
+	private static long allocatedBytes(ThreadMXBean threadBean) {
+		if (!allocationCounted(threadBean)) {
+			return 0;
+		}
+		return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link LdapBulkhead} keeps pooled interactive operations
+ * within the connections the other classes leave free
+ */
+public class LdapBulkheadTest {
+
+	@Test
+	public void pooledInteractiveLimitedToPoolShare() throws Exception {
+		LdapBulkhead bulkhead = new LdapBulkhead();
+		bulkhead.configure(LdapBulkhead.Priority.INTERACTIVE, 20, 0);
+		bulkhead.setPoolSize(10);
+
+		// 10 connections less 6 lookup and 2 bulk permits
+		assertEquals(Integer.valueOf(2), bulkhead.getAvailablePermits().get("INTERACTIVE_POOLED"));
+		bulkhead.acquirePooled(LdapBulkhead.Priority.INTERACTIVE);
+		bulkhead.acquirePooled(LdapBulkhead.Priority.INTERACTIVE);
+		try {
+			bulkhead.acquirePooled(LdapBulkhead.Priority.INTERACTIVE);
+			fail("More pooled interactive operations than the pool leaves them");
+		} catch (LdapBulkhead.RejectedException re) {
+			// expected
+		}
+		// Binds need no pooled connection
+		bulkhead.acquire(LdapBulkhead.Priority.INTERACTIVE);
+		assertEquals(Integer.valueOf(17), bulkhead.getAvailablePermits().get("INTERACTIVE"));
+
+		bulkhead.releasePooled(LdapBulkhead.Priority.INTERACTIVE);
+		bulkhead.acquirePooled(LdapBulkhead.Priority.INTERACTIVE);
+	}
+
+	@Test
+	public void poolShareFollowsConfiguration() {
+		LdapBulkhead bulkhead = new LdapBulkhead();
+		bulkhead.setPoolSize(20);
+		assertEquals(Integer.valueOf(12), bulkhead.getAvailablePermits().get("INTERACTIVE_POOLED"));
+		bulkhead.configure(LdapBulkhead.Priority.LOOKUP, 10, 2000);
+		assertEquals(Integer.valueOf(8), bulkhead.getAvailablePermits().get("INTERACTIVE_POOLED"));
+		// At least one is always left
+		bulkhead.setPoolSize(4);
+		assertEquals(Integer.valueOf(1), bulkhead.getAvailablePermits().get("INTERACTIVE_POOLED"));
+	}
+}
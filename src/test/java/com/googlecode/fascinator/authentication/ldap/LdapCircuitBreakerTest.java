@@ -0,0 +1,134 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks which errors {@link LdapCircuitBreaker} counts against the
+ * directory
+ */
+public class LdapCircuitBreakerTest {
+
+	private LdapConnectionPool pool;
+
+	@Before
+	public void setUp() {
+		StubLdapContextFactory.reset();
+		pool = new LdapConnectionPool(StubLdapContextFactory.environment(), 0, 1, 60000, 10, false, 0);
+	}
+
+	@After
+	public void tearDown() {
+		pool.close();
+	}
+
+	@Test
+	public void poolExhaustionDoesNotOpenBreaker() throws NamingException {
+		LdapCircuitBreaker breaker = new LdapCircuitBreaker(2, 60000);
+		NamingException exhausted = exhaustPool();
+		for (int i = 0; i < 5; i++) {
+			breaker.check();
+			breaker.record(exhausted);
+		}
+		assertEquals(LdapCircuitBreaker.State.CLOSED, breaker.getCurrentState());
+
+		breaker.record(new CommunicationException());
+		breaker.record(new CommunicationException());
+		assertEquals(LdapCircuitBreaker.State.OPEN, breaker.getCurrentState());
+	}
+
+	@Test
+	public void exhaustedProbeLetsNextCallProbe() throws Exception {
+		LdapCircuitBreaker breaker = new LdapCircuitBreaker(1, 50);
+		breaker.record(new CommunicationException());
+		assertEquals(LdapCircuitBreaker.State.OPEN, breaker.getCurrentState());
+		Thread.sleep(100);
+
+		breaker.check();
+		assertEquals(LdapCircuitBreaker.State.HALF_OPEN, breaker.getCurrentState());
+		breaker.record(exhaustPool());
+		assertEquals(LdapCircuitBreaker.State.OPEN, breaker.getCurrentState());
+
+		// The open time has already passed, so the next call probes at once
+		breaker.check();
+		breaker.record(null);
+		assertEquals(LdapCircuitBreaker.State.CLOSED, breaker.getCurrentState());
+	}
+
+	@Test
+	public void localRejectionsDoNotMarkServerUnreachable() throws NamingException {
+		LdapBulkhead bulkhead = new LdapBulkhead();
+		bulkhead.configure(LdapBulkhead.Priority.BULK, 1, 0);
+		bulkhead.acquire(LdapBulkhead.Priority.BULK);
+		NamingException rejected = null;
+		try {
+			bulkhead.acquire(LdapBulkhead.Priority.BULK);
+			fail("Acquired past the bulk permits");
+		} catch (LdapBulkhead.RejectedException re) {
+			rejected = re;
+		}
+		LdapCircuitBreaker breaker = new LdapCircuitBreaker(1, 60000);
+		breaker.record(new CommunicationException());
+		NamingException open = null;
+		try {
+			breaker.check();
+			fail("Open breaker let a call through");
+		} catch (LdapCircuitBreaker.OpenException oe) {
+			open = oe;
+		}
+
+		LdapServerSet servers = new LdapServerSet(Collections.singletonList("ldap://stub:389"), null);
+		for (NamingException error : new NamingException[] { rejected, open, exhaustPool() }) {
+			assertFalse(error.toString(), LdapServerSet.isUnreachable(error));
+			assertFalse(error.toString(), LdapCircuitBreaker.isFailure(error));
+			servers.recordFailure("ldap://stub:389", error);
+		}
+		assertTrue(servers.isHealthy("ldap://stub:389"));
+		assertEquals(0, servers.getServers().get(0).getFailureCount());
+	}
+
+	/**
+	 * @return the error raised borrowing from a pool with no free connection
+	 */
+	private NamingException exhaustPool() throws NamingException {
+		LdapConnectionPool.Connection held = pool.borrow();
+		try {
+			pool.borrow();
+			fail("Borrowed past the maximum size");
+			return null;
+		} catch (LdapConnectionPool.ExhaustedException ee) {
+			return ee;
+		} finally {
+			pool.release(held);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises {@link LdapConnectionPool} from many threads against
+ * {@link StubLdapContextFactory}, checking that no connection is handed to
+ * two borrowers, the pool never grows past its maximum size and every
+ * context it opens is eventually closed.
+ */
+public class LdapConnectionPoolTest {
+
+	private static final int THREADS = 16;
+	private static final int ITERATIONS = 2000;
+	private static final int MAX_SIZE = 4;
+
+	private LdapConnectionPool pool;
+
+	@Before
+	public void setUp() {
+		StubLdapContextFactory.reset();
+	}
+
+	@After
+	public void tearDown() {
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void concurrentBorrowReleaseAndEvict() throws Exception {
+		// A short idle time keeps the evictor closing and re-creating
+		// connections while the borrowers run
+		pool = new LdapConnectionPool(StubLdapContextFactory.environment(), 2,
+				MAX_SIZE, 1, 10000, true, 0);
+
+		final Set<LdapContext> inUse = Collections
+				.newSetFromMap(new IdentityHashMap<LdapContext, Boolean>());
+		final AtomicInteger maxInUse = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (int t = 0; t < THREADS; t++) {
+			final long seed = t;
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					Random random = new Random(seed);
+					start.await();
+					for (int i = 0; i < ITERATIONS; i++) {
+						LdapConnectionPool.Connection conn = pool.borrow();
+						LdapContext ctx = conn.getContext();
+						synchronized (inUse) {
+							if (!inUse.add(ctx)) {
+								fail("Connection handed to two borrowers");
+							}
+							maxInUse.set(Math.max(maxInUse.get(), inUse.size()));
+						}
+						// Fails if the pool handed out a closed context
+						ctx.getAttributes("", new String[] { "1.1" });
+						if (random.nextInt(10) == 0) {
+							Thread.sleep(1);
+						}
+						synchronized (inUse) {
+							inUse.remove(ctx);
+						}
+						if (random.nextInt(20) == 0) {
+							conn.markBroken();
+						}
+						pool.release(conn);
+					}
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<Void> result : results) {
+			result.get();
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+		assertTrue("Pool issued " + maxInUse.get() + " connections",
+				maxInUse.get() <= MAX_SIZE);
+		assertEquals(0, pool.getActiveCount());
+		assertEquals((long) THREADS * ITERATIONS, pool.getBorrowedCount());
+		assertOpenMatchesIdle();
+
+		pool.close();
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(StubLdapContextFactory.getOpenedCount(),
+				StubLdapContextFactory.getClosedCount());
+		assertEquals(pool.getCreatedCount(), pool.getDestroyedCount());
+	}
+
+	@Test(timeout = 30000)
+	public void evictsIdleConnectionsDownToMinimum() throws Exception {
+		pool = new LdapConnectionPool(StubLdapContextFactory.environment(), 1,
+				MAX_SIZE, 50, 1000, false, 0);
+		List<LdapConnectionPool.Connection> borrowed = new ArrayList<LdapConnectionPool.Connection>();
+		for (int i = 0; i < MAX_SIZE; i++) {
+			borrowed.add(pool.borrow());
+		}
+		for (LdapConnectionPool.Connection conn : borrowed) {
+			pool.release(conn);
+		}
+		assertEquals(MAX_SIZE, pool.getIdleCount());
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (pool.getIdleCount() > 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+		assertEquals(1, pool.getIdleCount());
+		assertOpenMatchesIdle();
+	}
+
+	@Test(timeout = 30000)
+	public void borrowTimesOutWhenExhausted() throws Exception {
+		pool = new LdapConnectionPool(StubLdapContextFactory.environment(), 0,
+				1, 60000, 100, false, 0);
+		LdapConnectionPool.Connection held = pool.borrow();
+		try {
+			pool.borrow();
+			fail("Borrowed past the maximum size");
+		} catch (LdapConnectionPool.ExhaustedException ee) {
+			assertFalse(LdapServerSet.isUnreachable(ee));
+		}
+		assertEquals(1, pool.getTimeoutCount());
+		assertEquals(1, pool.getActiveCount());
+
+		pool.release(held);
+		assertEquals(0, pool.getActiveCount());
+		pool.release(pool.borrow());
+		assertEquals(1, StubLdapContextFactory.getOpenedCount());
+	}
+
+	@Test
+	public void releaseAfterCloseClosesConnection() throws NamingException {
+		pool = new LdapConnectionPool(StubLdapContextFactory.environment());
+		LdapConnectionPool.Connection conn = pool.borrow();
+		pool.close();
+		pool.release(conn);
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(0, pool.getActiveCount());
+		assertEquals(1, StubLdapContextFactory.getClosedCount());
+	}
+
+	/**
+	 * Every context the pool opened and has not closed must be idle
+	 */
+	private void assertOpenMatchesIdle() {
+		assertEquals(pool.getIdleCount(), StubLdapContextFactory.getOpenedCount()
+				- StubLdapContextFactory.getClosedCount());
+		assertEquals(pool.getIdleCount(), pool.getCreatedCount() - pool.getDestroyedCount());
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.googlecode.fascinator.api.authentication.AuthenticationException;
+
+/**
+ * Replays a login trace against {@link LDAPAuthentication#logIn(String, String)}
+ * from a pool of threads, then reports login latency percentiles, throughput
+ * and the directory operations each login needed.
+ *
+ * <p>
+ * This is not a unit test. By default the plugin talks to
+ * {@link StubLdapContextFactory}, seeded with a synthetic directory whose
+ * binds and searches can be slowed down, made to vary and made to fail, to
+ * see how logins degrade when the directory does. Run it with options given
+ * as <code>name=value</code>:
+ * </p>
+ *
+ * <pre>
+ * java LdapLoadHarness [users=10000] [threads=16] [seconds=60]
+ *     [bindLatency=0] [searchLatency=0] [jitter=0]
+ *     [bindErrors=0] [searchErrors=0]
+ *     [trace=trace.txt] [badPasswords=0.1] [config=config.json]
+ * </pre>
+ *
+ * <p>
+ * Latencies and jitter are in milliseconds; each bind and search takes its
+ * latency plus a random time up to the jitter. Error rates are the fraction
+ * of binds and searches failing as if the connection was lost. The users are
+ * named user0, user1, ... with passwords password0, password1, ...
+ * </p>
+ *
+ * <p>
+ * Each line of the trace holds a username, a password and optionally a think
+ * time in milliseconds to wait after the login, separated by whitespace.
+ * Blank lines and lines starting with <code>#</code> are ignored. Without a
+ * trace every user logs in once in random order, with a wrong password for
+ * the <code>badPasswords</code> fraction of logins. Every thread replays the
+ * whole trace in a loop, starting at a different line, until the time is up.
+ * </p>
+ *
+ * <p>
+ * A plugin configuration file replaces the built-in one, for instance to
+ * try cache or pool settings, or to point <code>baseURL</code> at a live
+ * directory instead. It only uses the stub if its
+ * <code>contextFactory</code> names it. Operations per login are read from
+ * the plugin's JMX statistics, so <code>metrics/jmx</code> must not be
+ * disabled.
+ * </p>
+ */
+public class LdapLoadHarness {
+
+	private static final String BASE_DN = "ou=people,dc=example,dc=org";
+
+	/**
+	 * One line of the trace
+	 */
+	private static class Login {
+		final String username;
+		final String password;
+		final long thinkTime;
+
+		Login(String username, String password, long thinkTime) {
+			this.username = username;
+			this.password = password;
+			this.thinkTime = thinkTime;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals <= 0) {
+				System.err.println("Usage: LdapLoadHarness [name=value ...], see the class documentation");
+				System.exit(1);
+			}
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		int users = Integer.parseInt(option(options, "users", "10000"));
+		int threads = Integer.parseInt(option(options, "threads", "16"));
+		long seconds = Long.parseLong(option(options, "seconds", "60"));
+
+		StubLdapContextFactory.reset();
+		for (int i = 0; i < users; i++) {
+			StubLdapContextFactory.addEntry("uid=user" + i + "," + BASE_DN, "uid", "user" + i,
+					"cn", "User " + i, "mail", "user" + i + "@example.org",
+					"userPassword", "password" + i, "objectClass", "person");
+		}
+		StubLdapContextFactory.setBindLatency(Long.parseLong(option(options, "bindLatency", "0")));
+		StubLdapContextFactory.setSearchLatency(Long.parseLong(option(options, "searchLatency", "0")));
+		StubLdapContextFactory.setJitter(Long.parseLong(option(options, "jitter", "0")));
+		StubLdapContextFactory.setFailureRates(Double.parseDouble(option(options, "bindErrors", "0")),
+				Double.parseDouble(option(options, "searchErrors", "0")));
+
+		final List<Login> trace = options.containsKey("trace") ? readTrace(new File(options.get("trace")))
+				: syntheticTrace(users, Double.parseDouble(option(options, "badPasswords", "0.1")));
+		if (trace.isEmpty()) {
+			System.err.println("The trace is empty");
+			System.exit(1);
+		}
+
+		final LDAPAuthentication auth = new LDAPAuthentication();
+		if (options.containsKey("config")) {
+			auth.init(new File(options.get("config")));
+		} else {
+			auth.init(StubLdapContextFactory.pluginConfig(BASE_DN));
+		}
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong succeeded = new AtomicLong();
+		final AtomicLong rejected = new AtomicLong();
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		long operationsBefore = countOperations();
+		int failuresBefore = StubLdapContextFactory.getInjectedFailureCount();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final int offset = t * trace.size() / threads;
+			results.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i = offset; System.nanoTime() < end; i++) {
+						Login login = trace.get(i % trace.size());
+						long loginStart = System.nanoTime();
+						try {
+							auth.logIn(login.username, login.password);
+							succeeded.incrementAndGet();
+						} catch (AuthenticationException ae) {
+							rejected.incrementAndGet();
+						}
+						latency.record((System.nanoTime() - loginStart) / 1000);
+						if (login.thinkTime > 0) {
+							Thread.sleep(login.thinkTime);
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> result : results) {
+			result.get();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		pool.shutdown();
+		long operations = countOperations() - operationsBefore;
+		int injected = StubLdapContextFactory.getInjectedFailureCount() - failuresBefore;
+		auth.shutdown();
+
+		long logins = latency.getCount();
+		System.out.println(String.format("%d threads, %.1fs, %d logins: %d succeeded, %d rejected",
+				threads, elapsed, logins, succeeded.get(), rejected.get()));
+		System.out.println(String.format("throughput: %.1f logins/s", logins / elapsed));
+		System.out.println(String.format("latency (ms): mean %.2f, p50 %.2f, p95 %.2f, p99 %.2f, max %.2f",
+				latency.getMean() / 1000, latency.getPercentile(50) / 1000.0, latency.getPercentile(95) / 1000.0,
+				latency.getPercentile(99) / 1000.0, latency.getMax() / 1000.0));
+		System.out.println(String.format("LDAP operations per login: %.2f",
+				logins == 0 ? 0 : (double) operations / logins));
+		System.out.println(String.format("injected directory failures: %d", injected));
+	}
+
+	private static String option(Map<String, String> options, String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * @param users
+	 *            number of users in the directory
+	 * @param badPasswords
+	 *            fraction of logins with a wrong password
+	 * @return a login for every user, in random order
+	 */
+	private static List<Login> syntheticTrace(int users, double badPasswords) {
+		Random random = new Random(users);
+		List<Login> trace = new ArrayList<Login>();
+		for (int i = 0; i < users; i++) {
+			trace.add(new Login("user" + i, (random.nextDouble() < badPasswords ? "wrong" : "password") + i, 0));
+		}
+		Collections.shuffle(trace, random);
+		return trace;
+	}
+
+	/**
+	 * @param file
+	 *            the trace
+	 * @return its logins, in order
+	 */
+	private static List<Login> readTrace(File file) throws Exception {
+		List<Login> trace = new ArrayList<Login>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				trace.add(new Login(fields[0], fields.length > 1 ? fields[1] : "",
+						fields.length > 2 ? Long.parseLong(fields[2]) : 0));
+			}
+		} finally {
+			reader.close();
+		}
+		return trace;
+	}
+
+	/**
+	 * @return directory operations recorded so far, successful or not, over
+	 *         all published operation statistics
+	 */
+	private static long countOperations() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		long total = 0;
+		for (ObjectName name : server.queryNames(
+				new ObjectName(LdapMetrics.JMX_DOMAIN + ":type=LdapOperation,*"), null)) {
+			total += (Long) server.getAttribute(name, "SuccessCount")
+					+ (Long) server.getAttribute(name, "FailureCount");
+		}
+		return total;
+	}
+}
@@ -0,0 +1,703 @@
+/*
+ * The Fascinator - LDAP Authentication Plugin
+ * Copyright (C) 2012 Queensland Cyber Infrastructure Foundation (http://www.qcif.edu.au/)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.googlecode.fascinator.authentication.ldap;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * A JNDI context factory serving an in-memory directory, so that the pool
+ * and handler can be exercised without an LDAP server. Entries are held in
+ * static state shared by every context, which tests set up through
+ * {@link #reset()} and {@link #addEntry(String, String...)}.
+ *
+ * <p>
+ * Contexts support reading attributes, subtree searches with equality,
+ * presence, substring, AND, OR and NOT filters, the paged results control
+ * (other request controls are ignored) and closing. A search whose count
+ * limit leaves matching entries out fails with
+ * {@link SizeLimitExceededException} once the entries within the limit have
+ * been read, as a server would. Binding as the DN of an entry checks the
+ * entry's <code>userPassword</code>. Anonymous binds and binds as
+ * {@link #SYSTEM_PRINCIPAL} are accepted; any other principal is rejected.
+ * </p>
+ *
+ * <p>
+ * To stand in for a real server under load, binds and searches can be given
+ * a latency, a random jitter on top of it, and a rate at which they fail
+ * with {@link CommunicationException}.
+ * </p>
+ */
+public class StubLdapContextFactory implements InitialContextFactory {
+
+	/** A principal that may bind without an entry */
+	public static final String SYSTEM_PRINCIPAL = "cn=admin,dc=example,dc=org";
+
+	/** Credentials of {@link #SYSTEM_PRINCIPAL} */
+	public static final String SYSTEM_CREDENTIALS = "secret";
+
+	private static final Map<String, Attributes> entries = Collections
+			.synchronizedMap(new LinkedHashMap<String, Attributes>());
+
+	private static final Map<String, String> entryDns = Collections
+			.synchronizedMap(new LinkedHashMap<String, String>());
+
+	private static final List<String> filters = Collections.synchronizedList(new ArrayList<String>());
+
+	private static final List<String[]> binds = Collections.synchronizedList(new ArrayList<String[]>());
+
+	private static final AtomicInteger openedCount = new AtomicInteger();
+	private static final AtomicInteger closedCount = new AtomicInteger();
+	private static final AtomicInteger searchCount = new AtomicInteger();
+	private static final AtomicInteger abandonedCount = new AtomicInteger();
+	private static final AtomicInteger injectedFailureCount = new AtomicInteger();
+
+	/** Time (ms) every search takes */
+	private static volatile long searchLatency = 0;
+
+	/** Time (ms) every bind takes */
+	private static volatile long bindLatency = 0;
+
+	/** Greatest random time (ms) added to every bind and search */
+	private static volatile long jitter = 0;
+
+	/** Fraction of binds failing as if the server could not be reached */
+	private static volatile double bindFailureRate = 0;
+
+	/** Fraction of searches failing as if the connection was lost */
+	private static volatile double searchFailureRate = 0;
+
+	/**
+	 * Empties the directory and resets the counters
+	 */
+	public static void reset() {
+		entries.clear();
+		entryDns.clear();
+		filters.clear();
+		binds.clear();
+		openedCount.set(0);
+		closedCount.set(0);
+		searchCount.set(0);
+		abandonedCount.set(0);
+		injectedFailureCount.set(0);
+		searchLatency = 0;
+		bindLatency = 0;
+		jitter = 0;
+		bindFailureRate = 0;
+		searchFailureRate = 0;
+	}
+
+	/**
+	 * @return an environment whose contexts are served by this factory
+	 */
+	public static Hashtable<String, String> environment() {
+		Hashtable<String, String> env = new Hashtable<String, String>();
+		env.put(Context.INITIAL_CONTEXT_FACTORY, StubLdapContextFactory.class.getName());
+		env.put(Context.PROVIDER_URL, "ldap://stub:389");
+		return env;
+	}
+
+	/**
+	 * @param baseDn
+	 *            where the users are
+	 * @return a configuration of the plugin connecting through this
+	 *         factory as {@link #SYSTEM_PRINCIPAL}, with users named by
+	 *         <code>uid</code> and their <code>cn</code> and
+	 *         <code>mail</code> read at login
+	 */
+	public static String pluginConfig(String baseDn) {
+		return "{\"authentication\": {\"type\": \"ldap\", \"ldap\": {"
+				+ "\"baseURL\": \"ldap://stub:389\", "
+				+ "\"contextFactory\": \"" + StubLdapContextFactory.class.getName() + "\", "
+				+ "\"baseDN\": \"" + baseDn + "\", "
+				+ "\"ldapSecurityPrincipal\": \"" + SYSTEM_PRINCIPAL + "\", "
+				+ "\"ldapSecurityCredentials\": \"" + SYSTEM_CREDENTIALS + "\", "
+				+ "\"idAttribute\": \"uid\", "
+				+ "\"userAttributes\": [\"cn\", \"mail\"]}}}";
+	}
+
+	/**
+	 * Adds an entry
+	 *
+	 * @param dn
+	 *            the entry's DN
+	 * @param attrs
+	 *            alternating attribute names and values; a name may repeat
+	 *            for multiple values
+	 */
+	public static void addEntry(String dn, String... attrs) {
+		Attributes entry = new BasicAttributes(true);
+		for (int i = 0; i + 1 < attrs.length; i += 2) {
+			Attribute attr = entry.get(attrs[i]);
+			if (attr == null) {
+				entry.put(attrs[i], attrs[i + 1]);
+			} else {
+				attr.add(attrs[i + 1]);
+			}
+		}
+		entries.put(dn.toLowerCase(Locale.ENGLISH), entry);
+		entryDns.put(dn.toLowerCase(Locale.ENGLISH), dn);
+	}
+
+	/**
+	 * @param millis
+	 *            time every search takes from now on
+	 */
+	public static void setSearchLatency(long millis) {
+		searchLatency = millis;
+	}
+
+	/**
+	 * @param millis
+	 *            time every bind, including anonymous ones, takes from now on
+	 */
+	public static void setBindLatency(long millis) {
+		bindLatency = millis;
+	}
+
+	/**
+	 * @param millis
+	 *            greatest random time added to every bind and search from
+	 *            now on
+	 */
+	public static void setJitter(long millis) {
+		jitter = millis;
+	}
+
+	/**
+	 * @param bind
+	 *            fraction of binds failing from now on, between 0 and 1
+	 * @param search
+	 *            fraction of searches failing from now on, between 0 and 1
+	 */
+	public static void setFailureRates(double bind, double search) {
+		bindFailureRate = bind;
+		searchFailureRate = search;
+	}
+
+	/**
+	 * @return filters of every search so far, in order
+	 */
+	public static List<String> getFilters() {
+		synchronized (filters) {
+			return new ArrayList<String>(filters);
+		}
+	}
+
+	/**
+	 * @return principal and credentials of every bind attempted so far, in
+	 *         order, whether it succeeded or not
+	 */
+	public static List<String[]> getBinds() {
+		synchronized (binds) {
+			return new ArrayList<String[]>(binds);
+		}
+	}
+
+	/**
+	 * @return number of searches so far
+	 */
+	public static int getSearchCount() {
+		return searchCount.get();
+	}
+
+	/**
+	 * @return number of paged searches abandoned with a page size of 0,
+	 *         which are not counted as searches
+	 */
+	public static int getAbandonedCount() {
+		return abandonedCount.get();
+	}
+
+	/**
+	 * @return number of binds and searches failed on purpose so far
+	 */
+	public static int getInjectedFailureCount() {
+		return injectedFailureCount.get();
+	}
+
+	/**
+	 * @return number of contexts opened so far
+	 */
+	public static int getOpenedCount() {
+		return openedCount.get();
+	}
+
+	/**
+	 * @return number of contexts closed so far
+	 */
+	public static int getClosedCount() {
+		return closedCount.get();
+	}
+
+	@Override
+	public Context getInitialContext(Hashtable<?, ?> env) throws NamingException {
+		Object principal = env.get(Context.SECURITY_PRINCIPAL);
+		Object credentials = env.get(Context.SECURITY_CREDENTIALS);
+		if (principal != null) {
+			binds.add(new String[] { principal.toString(), String.valueOf(credentials) });
+		}
+		delay(bindLatency);
+		injectFailure(bindFailureRate, "bind");
+		if (principal != null) {
+			Attributes entry = entries.get(principal.toString().toLowerCase(Locale.ENGLISH));
+			Attribute password = entry == null ? null : entry.get("userPassword");
+			boolean valid = password != null ? password.get().equals(credentials)
+					: principal.equals(SYSTEM_PRINCIPAL) && SYSTEM_CREDENTIALS.equals(credentials);
+			if (!valid) {
+				throw new AuthenticationException("[LDAP: error code 49 - Invalid Credentials]");
+			}
+		}
+		openedCount.incrementAndGet();
+		return (Context) Proxy.newProxyInstance(StubLdapContextFactory.class.getClassLoader(),
+				new Class<?>[] { LdapContext.class }, new StubContext(env));
+	}
+
+	/**
+	 * Waits as long as a bind or search takes
+	 *
+	 * @param latency
+	 *            the fixed part of the time (ms)
+	 */
+	private static void delay(long latency) {
+		long millis = latency;
+		if (jitter > 0) {
+			millis += ThreadLocalRandom.current().nextLong(jitter + 1);
+		}
+		if (millis > 0) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Fails at random, at the given rate
+	 *
+	 * @param rate
+	 *            fraction of calls that fail
+	 * @param operation
+	 *            what failed, for the message
+	 * @throws CommunicationException
+	 *             for the calls that fail
+	 */
+	private static void injectFailure(double rate, String operation) throws CommunicationException {
+		if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+			injectedFailureCount.incrementAndGet();
+			throw new CommunicationException("Injected " + operation + " failure");
+		}
+	}
+
+	/**
+	 * Answers the calls made on one context
+	 */
+	private static class StubContext implements InvocationHandler {
+
+		private final Hashtable<?, ?> env;
+		private boolean closed = false;
+		private Control[] requestControls;
+		private Control[] responseControls;
+
+		StubContext(Hashtable<?, ?> env) {
+			this.env = env;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("equals")) {
+				return proxy == args[0];
+			}
+			if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			if (name.equals("toString")) {
+				return "StubContext@" + Integer.toHexString(System.identityHashCode(proxy));
+			}
+			synchronized (this) {
+				if (name.equals("close")) {
+					if (!closed) {
+						closed = true;
+						closedCount.incrementAndGet();
+					}
+					return null;
+				}
+				if (closed) {
+					throw new CommunicationException("Context is closed");
+				}
+			}
+			if (name.equals("getAttributes") && args.length == 2) {
+				return getAttributes(args[0].toString(), (String[]) args[1]);
+			}
+			if (name.equals("search") && args.length == 3 && args[1] instanceof String
+					&& args[2] instanceof SearchControls) {
+				return search((String) args[1], (SearchControls) args[2]);
+			}
+			if (name.equals("setRequestControls")) {
+				requestControls = (Control[]) args[0];
+				return null;
+			}
+			if (name.equals("getRequestControls")) {
+				return requestControls;
+			}
+			if (name.equals("getResponseControls")) {
+				return responseControls;
+			}
+			if (name.equals("getEnvironment")) {
+				return new Hashtable<Object, Object>(env);
+			}
+			throw new UnsupportedOperationException(name);
+		}
+
+		private Attributes getAttributes(String dn, String[] returning) throws NamingException {
+			if (dn.length() == 0) {
+				return new BasicAttributes(true);
+			}
+			Attributes entry = entries.get(dn.toLowerCase(Locale.ENGLISH));
+			if (entry == null) {
+				throw new NameNotFoundException(dn);
+			}
+			return select(entry, returning);
+		}
+
+		private NamingEnumeration<SearchResult> search(String filter, SearchControls sc) throws NamingException {
+			responseControls = null;
+			byte[][] paging = pagingRequest();
+			int pageSize = paging == null ? 0 : new BigInteger(paging[0]).intValue();
+			if (paging != null && pageSize == 0) {
+				abandonedCount.incrementAndGet();
+				return new ListEnumeration(Collections.<SearchResult> emptyList(), null);
+			}
+			searchCount.incrementAndGet();
+			filters.add(filter);
+			delay(searchLatency);
+			injectFailure(searchFailureRate, "search");
+			List<SearchResult> results = new ArrayList<SearchResult>();
+			NamingException limitExceeded = null;
+			List<Map.Entry<String, Attributes>> all;
+			synchronized (entries) {
+				all = new ArrayList<Map.Entry<String, Attributes>>(entries.entrySet());
+			}
+			FilterMatcher matcher = FilterMatcher.parse(filter);
+			for (Map.Entry<String, Attributes> entry : all) {
+				if (matcher.matches(entry.getValue())) {
+					if (sc.getCountLimit() > 0 && results.size() >= sc.getCountLimit()) {
+						limitExceeded = new SizeLimitExceededException("[LDAP: error code 4 - Sizelimit Exceeded]");
+						break;
+					}
+					String dn = entryDns.get(entry.getKey());
+					SearchResult result = new SearchResult(dn, null,
+							select(entry.getValue(), sc.getReturningAttributes()));
+					result.setNameInNamespace(dn);
+					results.add(result);
+				}
+			}
+			if (paging == null) {
+				return new ListEnumeration(results, limitExceeded);
+			}
+			// The cookie is the offset of the page
+			int offset = paging[1].length == 0 ? 0
+					: Integer.parseInt(new String(paging[1], StandardCharsets.UTF_8));
+			int end = Math.min(offset + pageSize, results.size());
+			boolean last = end == results.size();
+			byte[] cookie = last ? new byte[0] : String.valueOf(end).getBytes(StandardCharsets.UTF_8);
+			responseControls = new Control[] { pagedResponse(cookie) };
+			return new ListEnumeration(results.subList(offset, end), last ? limitExceeded : null);
+		}
+
+		/**
+		 * @return the encoded size and cookie of the paged results control
+		 *         requested, or null if there is none
+		 */
+		private byte[][] pagingRequest() {
+			Control[] controls = requestControls;
+			if (controls != null) {
+				for (Control control : controls) {
+					if (control.getID().equals(PagedResultsControl.OID)) {
+						return readSequence(control.getEncodedValue());
+					}
+				}
+			}
+			return null;
+		}
+
+		private static Control pagedResponse(byte[] cookie) throws NamingException {
+			// SEQUENCE { INTEGER 0, OCTET STRING cookie }
+			byte[] value = new byte[7 + cookie.length];
+			value[0] = 0x30;
+			value[1] = (byte) (5 + cookie.length);
+			value[2] = 0x02;
+			value[3] = 1;
+			value[4] = 0;
+			value[5] = 0x04;
+			value[6] = (byte) cookie.length;
+			System.arraycopy(cookie, 0, value, 7, cookie.length);
+			try {
+				return new PagedResultsResponseControl(PagedResultsResponseControl.OID, false, value);
+			} catch (IOException ioe) {
+				NamingException ne = new NamingException("Cannot encode paged results response");
+				ne.setRootCause(ioe);
+				throw ne;
+			}
+		}
+
+		/**
+		 * Reads the contents of the items of a BER encoded sequence
+		 */
+		private static byte[][] readSequence(byte[] ber) {
+			List<byte[]> items = new ArrayList<byte[]>();
+			int[] position = { 1 };
+			int end = readLength(ber, position) + position[0];
+			while (position[0] < end) {
+				position[0]++;
+				int length = readLength(ber, position);
+				items.add(Arrays.copyOfRange(ber, position[0], position[0] + length));
+				position[0] += length;
+			}
+			return items.toArray(new byte[items.size()][]);
+		}
+
+		private static int readLength(byte[] ber, int[] position) {
+			int first = ber[position[0]++] & 0xff;
+			if (first < 0x80) {
+				return first;
+			}
+			int length = 0;
+			for (int i = 0; i < (first & 0x7f); i++) {
+				length = (length << 8) | (ber[position[0]++] & 0xff);
+			}
+			return length;
+		}
+
+		private static Attributes select(Attributes entry, String[] returning) {
+			if (returning == null) {
+				return (Attributes) entry.clone();
+			}
+			Attributes selected = new BasicAttributes(true);
+			for (String attrName : returning) {
+				Attribute attr = entry.get(attrName);
+				if (attr != null) {
+					selected.put((Attribute) attr.clone());
+				}
+			}
+			return selected;
+		}
+	}
+
+	/**
+	 * A search result enumeration over a list, which may end in an error
+	 */
+	private static class ListEnumeration implements NamingEnumeration<SearchResult> {
+
+		private final Iterator<SearchResult> results;
+		private final NamingException error;
+
+		ListEnumeration(List<SearchResult> results, NamingException error) {
+			this.results = results.iterator();
+			this.error = error;
+		}
+
+		@Override
+		public boolean hasMore() throws NamingException {
+			if (!results.hasNext() && error != null) {
+				throw error;
+			}
+			return results.hasNext();
+		}
+
+		@Override
+		public boolean hasMoreElements() {
+			return results.hasNext();
+		}
+
+		@Override
+		public SearchResult next() {
+			return nextElement();
+		}
+
+		@Override
+		public SearchResult nextElement() {
+			if (!results.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return results.next();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+	/**
+	 * An RFC 4515 filter, parsed once and then evaluated against each entry
+	 */
+	private abstract static class FilterMatcher {
+
+		abstract boolean matches(Attributes entry) throws NamingException;
+
+		static FilterMatcher parse(String filter) {
+			String trimmed = filter.trim();
+			int[] position = { 0 };
+			return parse(trimmed.startsWith("(") ? trimmed : "(" + trimmed + ")", position);
+		}
+
+		private static FilterMatcher parse(String filter, int[] position) {
+			expect(filter, position, '(');
+			final char c = filter.charAt(position[0]);
+			FilterMatcher result;
+			if (c == '&' || c == '|') {
+				position[0]++;
+				final List<FilterMatcher> items = new ArrayList<FilterMatcher>();
+				while (filter.charAt(position[0]) == '(') {
+					items.add(parse(filter, position));
+				}
+				result = new FilterMatcher() {
+					@Override
+					boolean matches(Attributes entry) throws NamingException {
+						for (FilterMatcher item : items) {
+							if (item.matches(entry) != (c == '&')) {
+								return c != '&';
+							}
+						}
+						return c == '&';
+					}
+				};
+			} else if (c == '!') {
+				position[0]++;
+				final FilterMatcher item = parse(filter, position);
+				result = new FilterMatcher() {
+					@Override
+					boolean matches(Attributes entry) throws NamingException {
+						return !item.matches(entry);
+					}
+				};
+			} else {
+				int end = filter.indexOf(')', position[0]);
+				String item = filter.substring(position[0], end);
+				position[0] = end;
+				int equals = item.indexOf('=');
+				result = new ItemMatcher(item.substring(0, equals), item.substring(equals + 1));
+			}
+			expect(filter, position, ')');
+			return result;
+		}
+
+		private static void expect(String filter, int[] position, char c) {
+			if (filter.charAt(position[0]) != c) {
+				throw new IllegalArgumentException("Bad filter " + filter + " at " + position[0]);
+			}
+			position[0]++;
+		}
+	}
+
+	/**
+	 * An equality, presence or substring filter item, compared ignoring case
+	 */
+	private static class ItemMatcher extends FilterMatcher {
+
+		private final String attrName;
+		private final String value;
+		private final Pattern pattern;
+
+		ItemMatcher(String attrName, String value) {
+			this.attrName = attrName;
+			if (value.indexOf('*') < 0) {
+				this.value = unescape(value);
+				this.pattern = null;
+			} else {
+				String[] parts = value.split("\\*", -1);
+				StringBuilder regex = new StringBuilder();
+				for (int i = 0; i < parts.length; i++) {
+					if (i > 0) {
+						regex.append(".*");
+					}
+					regex.append(Pattern.quote(unescape(parts[i])));
+				}
+				this.value = null;
+				this.pattern = Pattern.compile(regex.toString(),
+						Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+			}
+		}
+
+		@Override
+		boolean matches(Attributes entry) throws NamingException {
+			Attribute attr = entry.get(attrName);
+			if (attr == null) {
+				return false;
+			}
+			for (int i = 0; i < attr.size(); i++) {
+				String actual = attr.get(i).toString();
+				if (value != null ? value.equalsIgnoreCase(actual) : pattern.matcher(actual).matches()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static String unescape(String value) {
+			StringBuilder result = new StringBuilder();
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '\\' && i + 2 < value.length()) {
+					result.append((char) Integer.parseInt(value.substring(i + 1, i + 3), 16));
+					i += 2;
+				} else {
+					result.append(c);
+				}
+			}
+			return result.toString();
+		}
+	}
+}